@@ -0,0 +1,30 @@
+package br.mil.eb.sermil.assinatura.client.benchmark;
+
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.AssinaturaClient;
+
+/**
+ * O mesmo {@link ObjectMapper} da aplicacao: builder do Spring Boot ({@link JacksonAutoConfiguration}) configurado pelo bean
+ * {@link AssinaturaClient#objectMapper(Jackson2ObjectMapperBuilder)}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+final class ApplicationObjectMapper {
+
+  private ApplicationObjectMapper() {
+  }
+
+  static ObjectMapper create() {
+    try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext(JacksonAutoConfiguration.class)) {
+      return new AssinaturaClient().objectMapper(context.getBean(Jackson2ObjectMapperBuilder.class));
+    }
+  }
+
+}
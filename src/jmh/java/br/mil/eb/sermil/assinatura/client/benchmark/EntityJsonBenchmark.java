@@ -0,0 +1,62 @@
+package br.mil.eb.sermil.assinatura.client.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+
+/**
+ * Serializacao e desserializacao de {@link AssinaturaEntity} com pdfs de tamanhos realistas (base64 dentro do json).
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EntityJsonBenchmark {
+
+  @Param({ "102400", "1048576", "5242880" })
+  public int pdfSize;
+
+  private final ObjectMapper objectMapper = ApplicationObjectMapper.create();
+
+  private AssinaturaEntity entity;
+
+  private byte[] json;
+
+  @Setup
+  public void setup() throws Exception {
+    final byte[] pdf = new byte[pdfSize];
+    new Random(42).nextBytes(pdf);
+    final CidDocMilitarDTO certificado = new CidDocMilitarDTO();
+    certificado.setPdf(pdf);
+    certificado.setAssinatura(new byte[4096]);
+    entity = AssinaturaEntity.builder().certificado(certificado).build();
+    json = objectMapper.writeValueAsBytes(entity);
+  }
+
+  @Benchmark
+  public byte[] serialize() throws Exception {
+    return objectMapper.writeValueAsBytes(entity);
+  }
+
+  @Benchmark
+  public AssinaturaEntity deserialize() throws Exception {
+    return objectMapper.readValue(json, AssinaturaEntity.class);
+  }
+
+}
@@ -0,0 +1,78 @@
+package br.mil.eb.sermil.assinatura.client.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.HeadersCache;
+import br.mil.eb.sermil.assinatura.client.service.PreferencesStore;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import br.mil.eb.sermil.assinatura.core.util.Constants;
+import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
+import br.mil.eb.sermil.assinatura.core.util.JwtTokenUtil;
+
+/**
+ * Custo dos cabecalhos enviados ao Assinatura Servidor (JWT, preferencias em json e parametro de verificacao), calculados a cada
+ * requisicao ou servidos pelo {@link HeadersCache}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class HeadersBenchmark {
+
+  private static final String CPF = "55555555555";
+
+  private final ObjectMapper objectMapper = ApplicationObjectMapper.create();
+
+  private HeadersCache headersCache;
+
+  private Preferences prefs;
+
+  @Setup
+  @SuppressWarnings("unchecked")
+  public void setup() {
+    prefs = new Preferences();
+    final Preferences.Config config = new Preferences.Config();
+    config.setDataSource("remote");
+    prefs.setConfig(config);
+    // preferencias da requisicao sao as que estao em memoria no PreferencesStore
+    final PreferencesStore preferencesStore = new PreferencesStore();
+    ((AtomicReference<Preferences>) ReflectionTestUtils.getField(preferencesStore, "current")).set(prefs);
+    headersCache = new HeadersCache();
+    ReflectionTestUtils.setField(headersCache, "env", new MockEnvironment());
+    ReflectionTestUtils.setField(headersCache, "objectMapper", objectMapper);
+    ReflectionTestUtils.setField(headersCache, "preferencesStore", preferencesStore);
+    ReflectionTestUtils.invokeMethod(headersCache, "init");
+  }
+
+  @Benchmark
+  public void uncached(Blackhole bh) throws Exception {
+    bh.consume(JwtTokenUtil.generateToken(CPF));
+    bh.consume(objectMapper.writeValueAsString(prefs));
+    bh.consume(CryptoUtil.encrypt(Constants.SECRET + CryptoUtil.SALT));
+  }
+
+  @Benchmark
+  public void cached(Blackhole bh) throws Exception {
+    bh.consume(headersCache.getToken(CPF));
+    bh.consume(headersCache.getPreferences(prefs));
+    bh.consume(headersCache.getVerificationParameter());
+  }
+
+}
@@ -0,0 +1,120 @@
+package br.mil.eb.sermil.assinatura.client.benchmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.ArchiveWriter;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+
+/**
+ * Copias locais pelo {@link ArchiveWriter}: um lote de certificados e agendado e a operacao termina quando todos estao gravados
+ * (fsync e rename), na pasta plana ou no arquivo enderecado por conteudo. Cada pdf recebe um contador para que o modo enderecado
+ * por conteudo nao deixe de gravar pdfs ja vistos.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LocalStoreBenchmark {
+
+  @Param({ "102400", "1048576" })
+  public int pdfSize;
+
+  @Param({ "32" })
+  public int batch;
+
+  @Param({ "false", "true" })
+  public boolean contentAddressed;
+
+  private Path dir;
+
+  private Metrics metrics;
+
+  private ArchiveWriter archiveWriter;
+
+  private Preferences prefs;
+
+  private final List<CidDocMilitarDTO> certificados = new ArrayList<>();
+
+  private long counter;
+
+  @Setup
+  public void setup() throws Exception {
+    dir = Files.createTempDirectory("assinatura-benchmark");
+    final ObjectMapper objectMapper = ApplicationObjectMapper.create();
+    final MockEnvironment env = new MockEnvironment().withProperty("application.archive.content-addressed", String.valueOf(contentAddressed));
+    metrics = new Metrics();
+    ReflectionTestUtils.setField(metrics, "env", env);
+    ReflectionTestUtils.setField(metrics, "objectMapper", objectMapper);
+    ReflectionTestUtils.invokeMethod(metrics, "init");
+    archiveWriter = new ArchiveWriter();
+    ReflectionTestUtils.setField(archiveWriter, "env", env);
+    ReflectionTestUtils.setField(archiveWriter, "metrics", metrics);
+    ReflectionTestUtils.invokeMethod(archiveWriter, "init");
+
+    prefs = new Preferences();
+    final Preferences.Config config = new Preferences.Config();
+    config.setSavePdfFileInMyLocalSystem(true);
+    config.setPdfFileSavingLocation(dir.toString());
+    prefs.setConfig(config);
+
+    final Random random = new Random(42);
+    for (int ra = 1; ra <= batch; ra++) {
+      final CidDocMilitarDTO certificado = objectMapper.readValue("{\"ra\":\"" + ra + "\",\"tipo\":1}", CidDocMilitarDTO.class);
+      final byte[] pdf = new byte[pdfSize];
+      random.nextBytes(pdf);
+      certificado.setPdf(pdf);
+      certificado.setAssinatura(new byte[4096]);
+      certificados.add(certificado);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    ReflectionTestUtils.invokeMethod(archiveWriter, "destroy");
+    ReflectionTestUtils.invokeMethod(metrics, "destroy");
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator)
+        Files.delete(file);
+    }
+  }
+
+  @Benchmark
+  public void archiveBatch() throws IOException, InterruptedException {
+    for (CidDocMilitarDTO certificado : certificados) {
+      ByteBuffer.wrap(certificado.getPdf()).putLong(counter);
+      ByteBuffer.wrap(certificado.getAssinatura()).putLong(counter++);
+      archiveWriter.archive(certificado, prefs);
+    }
+    if (!archiveWriter.flush(60000))
+      throw new IOException("Copias locais nao gravadas em 60s.");
+  }
+
+}
@@ -0,0 +1,120 @@
+package br.mil.eb.sermil.assinatura.client.benchmark;
+
+import java.io.FileInputStream;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.demoiselle.signer.policy.engine.factory.PolicyFactory.Policies;
+import org.demoiselle.signer.policy.impl.cades.SignerAlgorithmEnum;
+import org.demoiselle.signer.policy.impl.cades.factory.PKCS7Factory;
+import org.demoiselle.signer.policy.impl.cades.pkcs7.PKCS7Signer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.mil.eb.sermil.assinatura.client.service.TokenService;
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+
+/**
+ * Assinatura destacada com keystore PKCS#12 em software. Usa o arquivo de {@code -Dbenchmark.pkcs12.file} (senha em
+ * {@code -Dbenchmark.pkcs12.password}) ou, na ausencia dele, um certificado auto-assinado gerado no setup.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SigningBenchmark {
+
+  @Param({ "102400", "1048576", "5242880" })
+  public int pdfSize;
+
+  private TokenService tokenService;
+
+  private PKCS7Signer signer;
+
+  private byte[] pdf;
+
+  private byte[] sha256;
+
+  @Setup
+  public void setup() throws Exception {
+    tokenService = new TokenService();
+    ReflectionTestUtils.setField(tokenService, "metrics", new Metrics());
+
+    final KeyStore keyStore = loadKeyStore();
+    final String alias = keyStore.aliases().nextElement();
+    signer = PKCS7Factory.getInstance().factoryDefault();
+    signer.setCertificates(keyStore.getCertificateChain(alias));
+    signer.setPrivateKey((PrivateKey) keyStore.getKey(alias, password()));
+    signer.setSignaturePolicy(Policies.AD_RB_CADES_2_2);
+    signer.setAlgorithm(SignerAlgorithmEnum.SHA256withRSA);
+
+    pdf = new byte[pdfSize];
+    new Random(42).nextBytes(pdf);
+    sha256 = Digests.sha256(pdf);
+  }
+
+  @Benchmark
+  public byte[] signDetatched() {
+    return tokenService.signDetatched(signer, pdf);
+  }
+
+  @Benchmark
+  public byte[] signDigest() {
+    return tokenService.signDigest(signer, sha256);
+  }
+
+  @Benchmark
+  public byte[] hashThenSign() {
+    return tokenService.signDigest(signer, Digests.sha256(pdf));
+  }
+
+  private static KeyStore loadKeyStore() throws Exception {
+    final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    final String file = System.getProperty("benchmark.pkcs12.file");
+    if (file != null) {
+      try (FileInputStream in = new FileInputStream(file)) {
+        keyStore.load(in, password());
+      }
+      return keyStore;
+    }
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    final KeyPair keyPair = generator.generateKeyPair();
+    final X500Name name = new X500Name("CN=Assinatura Benchmark");
+    final long now = System.currentTimeMillis();
+    final X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(new JcaX509v3CertificateBuilder(name,
+        BigInteger.ONE, new Date(now - 86400000L), new Date(now + 365 * 86400000L), name, keyPair.getPublic())
+            .build(new JcaContentSignerBuilder("SHA256withRSA").build(keyPair.getPrivate())));
+    keyStore.load(null, null);
+    keyStore.setKeyEntry("benchmark", keyPair.getPrivate(), password(), new Certificate[] { certificate });
+    return keyStore;
+  }
+
+  private static char[] password() {
+    return System.getProperty("benchmark.pkcs12.password", "benchmark").toCharArray();
+  }
+
+}
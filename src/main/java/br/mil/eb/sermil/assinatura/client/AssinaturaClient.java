@@ -1,20 +1,39 @@
 package br.mil.eb.sermil.assinatura.client;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.PropertySource;
+import org.springframework.core.env.Environment;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Controller;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.cors.CorsConfiguration;
 import org.springframework.web.cors.UrlBasedCorsConfigurationSource;
 import org.springframework.web.filter.CorsFilter;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import br.mil.eb.sermil.assinatura.client.service.TokenService;
+import br.mil.eb.sermil.assinatura.client.util.StartupTimer;
 import javafx.application.Platform;
+import javafx.concurrent.Worker;
+import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressIndicator;
 import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.VBox;
 import javafx.scene.web.WebView;
 import javafx.stage.Stage;
 import lombok.val;
@@ -37,15 +56,31 @@ public class AssinaturaClient extends javafx.application.Application {
   private final float ALTURA = LARGURA / 1.42f;
 	public static Stage stage;
 
+  /**
+   * Contexto Spring, completado quando o servidor embarcado esta pronto para atender a pagina.
+   */
+  private static final CompletableFuture<ConfigurableApplicationContext> CONTEXT = new CompletableFuture<>();
+
   public static void main(String[] args) {
     log.info("Iniciando Modulo Assinatura Digital ...");
-    SpringApplication.run(AssinaturaClient.class, args); // Spring
-    
+    StartupTimer.mark("JVM");
+
 		if (DEV_MODE) {
 			// Desenvolvimento
+			SpringApplication.run(AssinaturaClient.class, args); // Spring
 			openBrowser();
 		} else {
-			// Producao
+			// Producao: Spring sobe em paralelo com a janela JavaFX (tela de abertura)
+			Thread spring = new Thread(() -> {
+				try {
+					CONTEXT.complete(SpringApplication.run(AssinaturaClient.class, args));
+					StartupTimer.mark("Spring e servidor embarcado");
+				} catch (Throwable e) {
+					log.error("ERRO NA INICIALIZACAO DO SPRING: {}", e.getMessage());
+					CONTEXT.completeExceptionally(e);
+				}
+			}, "spring-startup");
+			spring.start();
 			launch(args);
 			Platform.exit();
 			System.exit(0);
@@ -73,16 +108,37 @@ public class AssinaturaClient extends javafx.application.Application {
   @Override
   public void start(Stage primaryStage) throws Exception {
   	stage = primaryStage;
-    createWebView(primaryStage, PAGE);
+  	showSplash(primaryStage);
+  	StartupTimer.mark("Janela JavaFX");
+  	CONTEXT.whenComplete((context, e) -> Platform.runLater(() -> {
+  	  if (e != null) {
+  	    Platform.exit();
+  	    return;
+  	  }
+  	  createWebView(primaryStage, PAGE);
+  	}));
+  }
+
+  private void showSplash(Stage primaryStage) {
+    val logo = new ImageView(new Image("static/image/logo3.png"));
+    val splash = new VBox(16, logo, new ProgressIndicator(), new Label("Iniciando " + TITULO + " ..."));
+    splash.setAlignment(Pos.CENTER);
+    primaryStage.getIcons().add(new Image("static/image/logo3.png"));
+    primaryStage.setScene(new Scene(splash, LARGURA / 2, ALTURA / 2));
+    primaryStage.setTitle(TITULO);
+    primaryStage.show();
   }
 
   private void createWebView(Stage primaryStage, String page) {
     val webView = new WebView();
     webView.getEngine().setOnAlert((e) -> log.info("Browse Alert : {}", e.getData()));
     webView.getEngine().setOnError((e) -> log.info("Browser Error: {}", e.getMessage()));
+    webView.getEngine().getLoadWorker().stateProperty().addListener((observable, previous, state) -> {
+      if (state == Worker.State.SUCCEEDED)
+        StartupTimer.mark("Pagina carregada");
+    });
     webView.getEngine().load(page);
     val scene = new Scene(webView, LARGURA, ALTURA);
-    primaryStage.getIcons().add(new Image("static/image/logo3.png"));
     primaryStage.setScene(scene);
     primaryStage.setTitle(TITULO);
     primaryStage.setMaximized(true);
@@ -93,6 +149,45 @@ public class AssinaturaClient extends javafx.application.Application {
    * SPRING BEANS AND MAIN CONTROLLER CONFIGURATION
    */
 
+  /**
+   * ObjectMapper unico da aplicacao (MVC, comunicacao com o servidor e arquivos de preferencias).
+   */
+  @Bean
+  @Primary
+  public ObjectMapper objectMapper(Jackson2ObjectMapperBuilder builder) {
+    return builder.failOnUnknownProperties(false).featuresToDisable(SerializationFeature.FAIL_ON_EMPTY_BEANS).build();
+  }
+
+  /**
+   * Threads que aguardam as chamadas ao Assinatura Servidor, liberando as threads do Tomcat enquanto a resposta nao chega.
+   */
+  @Bean
+  public ThreadPoolTaskExecutor serverCallExecutor(Environment env) {
+    val executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(env.getProperty("server.call.threads", Integer.class, 16));
+    executor.setMaxPoolSize(env.getProperty("server.call.threads", Integer.class, 16));
+    executor.setQueueCapacity(env.getProperty("server.call.queue.size", Integer.class, 200));
+    executor.setThreadNamePrefix("server-call-");
+    executor.setDaemon(true);
+    return executor;
+  }
+
+  /**
+   * Procura o token em segundo plano assim que a aplicacao fica pronta, para que a primeira consulta de certificados ja encontre
+   * o KeyStore carregado.
+   */
+  @Bean
+  public ApplicationListener<ApplicationReadyEvent> tokenDiscovery(TokenService tokenService) {
+    return event -> CompletableFuture.runAsync(() -> {
+      try {
+        tokenService.getKeyStore();
+        StartupTimer.mark("Token");
+      } catch (Exception e) {
+        log.info("Nenhum token encontrado na inicializacao: {}", e.getMessage());
+      }
+    });
+  }
+
   @Bean
   public CorsFilter corsFilter() {
     val source = new UrlBasedCorsConfigurationSource();
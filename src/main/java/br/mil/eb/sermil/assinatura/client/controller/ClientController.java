@@ -1,18 +1,27 @@
 package br.mil.eb.sermil.assinatura.client.controller;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.FileUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.util.StringUtils;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
@@ -20,22 +29,34 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
-import br.mil.eb.sermil.assinatura.client.AssinaturaClient;
+import br.mil.eb.sermil.assinatura.client.service.ArchiveRecord;
+import br.mil.eb.sermil.assinatura.client.service.ArchiveWriter;
+import br.mil.eb.sermil.assinatura.client.service.CertificateImageCache;
+import br.mil.eb.sermil.assinatura.client.service.CertificatePager;
 import br.mil.eb.sermil.assinatura.client.service.CommunicationService;
 import br.mil.eb.sermil.assinatura.client.service.DiagnosticService;
+import br.mil.eb.sermil.assinatura.client.service.HealthMonitorService;
+import br.mil.eb.sermil.assinatura.client.service.HealthSnapshot;
+import br.mil.eb.sermil.assinatura.client.service.OfflineJournal;
+import br.mil.eb.sermil.assinatura.client.service.PreferencesStore;
+import br.mil.eb.sermil.assinatura.client.service.SignedPdfStore;
+import br.mil.eb.sermil.assinatura.client.service.SigningService;
 import br.mil.eb.sermil.assinatura.client.service.TokenService;
+import br.mil.eb.sermil.assinatura.client.service.VerificationReport;
+import br.mil.eb.sermil.assinatura.client.service.VerificationResult;
+import br.mil.eb.sermil.assinatura.client.service.VerificationService;
+import br.mil.eb.sermil.assinatura.client.service.WindowService;
 import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PayloadLogger;
 import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
-import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
 import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
 import br.mil.eb.sermil.assinatura.core.type.Preferences;
-import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
-import javafx.application.Platform;
-import javafx.stage.DirectoryChooser;
 import lombok.val;
 import lombok.extern.slf4j.Slf4j;
 
@@ -48,6 +69,8 @@ import lombok.extern.slf4j.Slf4j;
 @RestController
 public class ClientController {
 
+  private static final String NDJSON = "application/x-ndjson";
+
   @Autowired
   private Environment env;
 
@@ -57,33 +80,73 @@ public class ClientController {
   @Autowired
   private TokenService tokenService;
 
+  @Autowired
+  private SigningService signingService;
+
   @Autowired
   private DiagnosticService diagnosticService;
 
+  @Autowired
+  private HealthMonitorService healthMonitorService;
+
+  @Autowired
+  private WindowService windowService;
+
+  @Autowired
+  private Executor serverCallExecutor;
+
+  @Autowired
+  private CertificateImageCache certificateImageCache;
+
+  @Autowired
+  private CertificatePager certificatePager;
+
+  @Autowired
+  private SignedPdfStore signedPdfStore;
+
+  @Autowired
+  private ArchiveWriter archiveWriter;
+
+  @Autowired
+  private VerificationService verificationService;
+
+  @Autowired
+  private PreferencesStore preferencesStore;
+
+  @Autowired
+  private OfflineJournal offlineJournal;
+
+  @Autowired
+  private Metrics metrics;
+
   @Autowired
   private Messages messages;
 
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private PayloadLogger payloadLogger;
+
   @PostMapping(value = { "/diagnostic/run" }, consumes = { MediaType.APPLICATION_JSON_VALUE }, produces = {
       MediaType.APPLICATION_JSON_VALUE })
-  public AssinaturaEntity diagnosticRun(@RequestBody Preferences prefs) throws JsonProcessingException {
-    log.info("Running diagnostics: {}", new ObjectMapper().writeValueAsString(prefs));
-    return diagnosticService.run(prefs);
+  public AssinaturaEntity diagnosticRun(@RequestBody Preferences prefs) {
+    payloadLogger.debug("Running diagnostics", prefs);
+    return healthMonitorService.diagnostic(prefs);
+  }
+
+  @GetMapping(value = { "/diagnostic/status" }, produces = { MediaType.APPLICATION_JSON_VALUE })
+  public HealthSnapshot diagnosticStatus() {
+    return healthMonitorService.getSnapshot();
   }
 
   @PostMapping(value = {
       "/preferencias/carregar" }, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
   public AssinaturaEntity preferenciasCarregar(@RequestBody Preferences prefs) {
     try {
-      if (!Files.exists(Paths.get(env.getProperty("application.preferences.file"))))
-        savePreferencesFile(prefs);
-      else {
-        val res = readPreferencesFile(env.getProperty("application.preferences.file"));
-        if (res == null || res.getConfig() == null || res.getFilter() == null)
-          savePreferencesFile(prefs);
-        else
-          prefs = res;
-      }
+      prefs = preferencesStore.load(prefs);
       communicationService.setProxy(Optional.of(prefs.getConfig()));
+      healthMonitorService.setPreferences(prefs);
       log.info("CONFIGURACOES DE USUARIO SALVAS/CARREGADAS COM SUCESSO.");
       AssinaturaEntity ae = AssinaturaEntity.builder().preferences(prefs).build().addInfoMsg(messages.get("preferences.save.success"));
       this.diagnosticService.checkFileConfig(Optional.of(prefs.getConfig()), ae);
@@ -95,33 +158,32 @@ public class ClientController {
     }
   }
 
+  /**
+   * Seletor de pasta para as copias locais. A resposta e entregue quando o usuario fecha o dialogo (pasta escolhida ou cancelado)
+   * ou, no maximo, apos {@code filechooser.timeout.ms}, mantendo a pasta anterior.
+   */
   @PostMapping(value = { "/fileChooser" }, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-  public AssinaturaEntity fileChooser_(@RequestBody Preferences prefs) {
-    try {
-      val previousLocation = prefs.getConfig().getPdfFileSavingLocation();
-      prefs.getConfig().setPdfFileSavingLocation(null);
-      Platform.runLater(() -> {
-        val directoryChooser = new DirectoryChooser();
-        val selectedDirectory = directoryChooser.showDialog(AssinaturaClient.stage).getAbsolutePath();
-        if (!StringUtils.isEmpty(selectedDirectory))
-          prefs.getConfig().setPdfFileSavingLocation(selectedDirectory);
-        else
-          prefs.getConfig().setPdfFileSavingLocation(previousLocation);
-      });
-      while (prefs.getConfig().getPdfFileSavingLocation() == null) {
-        Thread.sleep(100);
+  public DeferredResult<AssinaturaEntity> fileChooser_(@RequestBody Preferences prefs) {
+    val result = new DeferredResult<AssinaturaEntity>(env.getProperty("filechooser.timeout.ms", Long.class, 300000L),
+        AssinaturaEntity.builder().preferences(prefs).build());
+    windowService.chooseDirectory(prefs.getConfig().getPdfFileSavingLocation()).whenComplete((selectedDirectory, e) -> {
+      if (e != null) {
+        log.error("ERRO NA SELECAO DE PASTA: {}", e.getMessage());
+        result.setResult(new AssinaturaEntity().addErrorMsg(messages.get("preferences.load.error")));
+      } else {
+        selectedDirectory.ifPresent(prefs.getConfig()::setPdfFileSavingLocation);
+        result.setResult(AssinaturaEntity.builder().preferences(prefs).build());
       }
-      return AssinaturaEntity.builder().preferences(prefs).build();
-    } catch (Exception e) {
-      return handleException(e).addErrorMsg(messages.get("preferences.load.error"));
-    }
+    });
+    return result;
   }
 
   @PostMapping(value = { "/preferencias/salvar" }, consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
   public AssinaturaEntity savePreferences(@RequestBody Preferences prefs) {
     try {
-      savePreferencesFile(prefs);
+      preferencesStore.save(prefs);
       communicationService.setProxy(Optional.of(prefs.getConfig()));
+      healthMonitorService.setPreferences(prefs);
       log.info("CONFIGURACOES DE USUARIO SALVAS COM SUCESSO.");
       val ae = AssinaturaEntity.builder().preferences(prefs).build().addInfoMsg(messages.get("preferences.save.success"));
       this.diagnosticService.checkFileConfig(Optional.of(prefs.getConfig()), ae);
@@ -133,17 +195,21 @@ public class ClientController {
   }
 
   @PostMapping("/version/check")
-  public AssinaturaEntity versionCheck(@RequestBody Preferences prefs, @RequestParam String cpf) {
-    try {
-      log.info("Iniciando checagem de versao: {}", new ObjectMapper().writeValueAsString(prefs));
-      val ae = this.communicationService.get("/version/check", cpf, prefs);
-      this.checkVersions(ae, env.getProperty("application.version"));
-      log.info("Checagem de versao terminada: {}", new ObjectMapper().writeValueAsString(ae));
-      return ae;
-    } catch (Exception e) {
-      log.error("ERRO NA TENTATIVA DE CONFERIR VERSOES DE USUARIO E SERVIDOR: " + e.getMessage());
-      return handleException(e);
-    }
+  public CompletableFuture<AssinaturaEntity> versionCheck(@RequestBody Preferences prefs, @RequestParam String cpf) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        log.info("Iniciando checagem de versao.");
+        payloadLogger.debug("Preferencias", prefs);
+        val ae = this.communicationService.get("/version/check", cpf, prefs);
+        this.checkVersions(ae, env.getProperty("application.version"));
+        log.info("Checagem de versao terminada.");
+        payloadLogger.debug("Checagem de versao", ae);
+        return ae;
+      } catch (Exception e) {
+        log.error("ERRO NA TENTATIVA DE CONFERIR VERSOES DE USUARIO E SERVIDOR: " + e.getMessage());
+        return handleException(e);
+      }
+    }, serverCallExecutor);
   }
 
   @RequestMapping("/token/get_aliases")
@@ -161,6 +227,12 @@ public class ClientController {
     }
   }
 
+  @RequestMapping("/token/refresh")
+  public AssinaturaEntity refreshToken() {
+    tokenService.invalidate();
+    return getAliases();
+  }
+
   @GetMapping("/token/certificate/info")
   public AssinaturaEntity setXcertInfo(@RequestParam String alias) {
     try {
@@ -173,64 +245,201 @@ public class ClientController {
   }
 
   @PostMapping(value = "/user/info", consumes = MediaType.APPLICATION_JSON_VALUE, produces = MediaType.APPLICATION_JSON_VALUE)
-  public AssinaturaEntity getUserInfo(@RequestBody Preferences prefs, @RequestParam String cpf) {
-    try {
-      log.info("Iniciando processo de verificacao de informacoes de usuario: {}", new ObjectMapper().writeValueAsString(prefs));
-      val ae = communicationService.get("/user/info", cpf, prefs);
-      log.info("Processo de verificacao de informacoes de usuario terminado: {}", new ObjectMapper().writeValueAsString(ae));
-      return ae;
-    } catch (Exception e) {
-      log.error("ERRO AO TENTAR TRAZER DO SERMIL SUAS INFORMACOES DE USUARIO: {}", e.getMessage());
-      return handleException(e);
-    }
+  public CompletableFuture<AssinaturaEntity> getUserInfo(@RequestBody Preferences prefs, @RequestParam String cpf) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        log.info("Iniciando processo de verificacao de informacoes de usuario.");
+        payloadLogger.debug("Preferencias", prefs);
+        val ae = communicationService.get("/user/info", cpf, prefs);
+        log.info("Processo de verificacao de informacoes de usuario terminado.");
+        payloadLogger.debug("Informacoes de usuario", ae);
+        return ae;
+      } catch (Exception e) {
+        log.error("ERRO AO TENTAR TRAZER DO SERMIL SUAS INFORMACOES DE USUARIO: {}", e.getMessage());
+        return handleException(e);
+      }
+    }, serverCallExecutor);
   }
 
   @PostMapping("/user/jsms")
-  public AssinaturaEntity userJsms(@RequestBody Preferences prefs, @RequestParam String cpf) throws IOException {
-    try {
-      return communicationService.get("/user/jsms", cpf, prefs);
-    } catch (Exception e) {
-      log.error("ERRO AO TENTAR TRAZER DO SERMIL AS SUAS JUNTAS DE SERVICO MILITAR: {}", e.getMessage());
-      return handleException(e);
-    }
+  public CompletableFuture<AssinaturaEntity> userJsms(@RequestBody Preferences prefs, @RequestParam String cpf) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return communicationService.get("/user/jsms", cpf, prefs);
+      } catch (Exception e) {
+        log.error("ERRO AO TENTAR TRAZER DO SERMIL AS SUAS JUNTAS DE SERVICO MILITAR: {}", e.getMessage());
+        return handleException(e);
+      }
+    }, serverCallExecutor);
   }
 
   @PostMapping("/user/certificates")
-  public AssinaturaEntity getUserCertificates(@RequestBody Preferences prefs, @RequestParam String cpf) {
-    try {
-      val ae = communicationService.post(prefs, "/user/certificates", cpf, prefs);
-      if (ae.getCertificados() != null && ae.getCertificados().size() > 0)
-        ae.getCertificados().forEach(c -> c.setAssinaUsuario(ae.getUsuario()));
-      return ae;
-    } catch (Exception e) {
-      log.error("ERRO AO TRAZER DO SERMIL SEUS CERTIFICADOS MILITARES PARA ASSINAR: {}", e.getMessage());
-      return handleException(e);
-    }
+  public CompletableFuture<AssinaturaEntity> getUserCertificates(@RequestBody Preferences prefs, @RequestParam String cpf) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        val ae = communicationService.post(prefs, "/user/certificates", cpf, prefs);
+        if (ae.getCertificados() != null && ae.getCertificados().size() > 0) {
+          ae.getCertificados().forEach(c -> c.setAssinaUsuario(ae.getUsuario()));
+          certificateImageCache.prefetch(ae.getCertificados(), prefs);
+        }
+        return ae;
+      } catch (Exception e) {
+        log.error("ERRO AO TRAZER DO SERMIL SEUS CERTIFICADOS MILITARES PARA ASSINAR: {}", e.getMessage());
+        return handleException(e);
+      }
+    }, serverCallExecutor);
+  }
+
+  /**
+   * Pagina de certificados a assinar. O cursor da proxima pagina volta no cabecalho {@code X-Next-Cursor} quando ha mais
+   * certificados; sem {@code cursor} a lista e lida novamente do servidor.
+   */
+  @PostMapping(value = "/user/certificates/pagina", produces = MediaType.APPLICATION_JSON_VALUE)
+  public CompletableFuture<ResponseEntity<AssinaturaEntity>> getUserCertificatesPage(@RequestBody Preferences prefs,
+      @RequestParam String cpf, @RequestParam(required = false) String cursor, @RequestParam(defaultValue = "50") int limit) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        val page = certificatePager.page(cpf, prefs, cursor, limit);
+        certificateImageCache.prefetch(page.getCertificados(), prefs);
+        val response = ResponseEntity.ok();
+        if (page.isHasMore())
+          response.header("X-Next-Cursor", page.getNextCursor());
+        return response.body(AssinaturaEntity.builder().certificados(page.getCertificados()).build());
+      } catch (Exception e) {
+        log.error("ERRO AO TRAZER DO SERMIL SEUS CERTIFICADOS MILITARES PARA ASSINAR: {}", e.getMessage());
+        return ResponseEntity.ok(handleException(e));
+      }
+    }, serverCallExecutor);
+  }
+
+  /**
+   * Certificados a assinar em NDJSON: cada certificado e enviado ao navegador assim que e lido da resposta do servidor. Em caso
+   * de erro a ultima linha e um {@link AssinaturaEntity} com as mensagens de erro.
+   */
+  @PostMapping(value = "/user/certificates/stream", produces = NDJSON)
+  public ResponseEntity<StreamingResponseBody> streamUserCertificates(@RequestBody Preferences prefs, @RequestParam String cpf) {
+    StreamingResponseBody body = out -> {
+      try {
+        communicationService.readUserCertificates(cpf, prefs, certificado -> {
+          try {
+            out.write(objectMapper.writeValueAsBytes(certificado));
+            out.write('\n');
+            out.flush();
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+        });
+      } catch (Exception e) {
+        log.error("ERRO AO TRAZER DO SERMIL SEUS CERTIFICADOS MILITARES PARA ASSINAR: {}", e.getMessage());
+        out.write(objectMapper.writeValueAsBytes(handleException(e)));
+        out.write('\n');
+      }
+    };
+    return ResponseEntity.ok().contentType(MediaType.parseMediaType(NDJSON)).body(body);
   }
 
   @PostMapping("/certificate/image")
-  public AssinaturaEntity certificateImage(@RequestBody AssinaturaEntity assEntity) {
-    try {
-      val certificado = assEntity.getCertificado();
-      if (certificado.getImage() == null) {
-        val ae = communicationService.post(certificado, "/user/certificate/image", certificado.getAssinaUsuario().getCpf(),
-            assEntity.getPreferences());
-        if (ae.getErrorMsgs() != null && ae.getErrorMsgs().size() > 0)
-          throw new AssinaturaException(ae.getErrorMsgs().get(0));
-        certificado.setImage(ae.getCertificado().getImage());
+  public CompletableFuture<AssinaturaEntity> certificateImage(@RequestBody AssinaturaEntity assEntity) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        val certificado = assEntity.getCertificado();
+        if (certificado.getImage() == null)
+          certificado.setImage(certificateImageCache.getImage(certificado, assEntity.getPreferences()));
+        return AssinaturaEntity.builder().certificado(certificado).build();
+      } catch (Exception e) {
+        log.error("ERRO AO TENTAR GERAR A IMAGEM DO CERTIFICADO: {}", e.getMessage());
+        return handleException(e);
       }
-      return AssinaturaEntity.builder().certificado(certificado).build();
-    } catch (Exception e) {
-      log.error("ERRO AO TENTAR GERAR A IMAGEM DO CERTIFICADO: {}", e.getMessage());
-      return handleException(e);
-    }
+    }, serverCallExecutor);
   }
 
+  /**
+   * Pdf assinado: o do proprio certificado ou, no modo streaming (certificado sem pdf), a copia do {@link SignedPdfStore}; 404
+   * se nao houver nenhum.
+   */
   @PostMapping("/certificate/download")
   public void certificatePdfDownload(@RequestBody CidDocMilitarDTO certificate, @Autowired HttpServletResponse resonse) throws IOException {
+    val file = certificate.getPdf() == null ? signedPdfStore.locate(certificate) : null;
+    if (certificate.getPdf() == null && file == null) {
+      resonse.sendError(HttpStatus.NOT_FOUND.value());
+      return;
+    }
     resonse.setContentType("application/pdf");
     resonse.setHeader("Content-Disposition", "attachment;filename=RA" + certificate.getRa());
-    resonse.getOutputStream().write(certificate.getPdf());
+    if (file == null) {
+      resonse.getOutputStream().write(certificate.getPdf());
+    } else {
+      resonse.setContentLengthLong(Files.size(file));
+      Files.copy(file, resonse.getOutputStream());
+    }
+  }
+
+  /**
+   * Copia local ja arquivada do certificado (RA e tipo) na pasta das preferencias; 404 se nao houver. Somente com
+   * {@code application.archive.content-addressed}. RA e tipo nao numericos: 400.
+   */
+  @PostMapping(value = "/archive/certificado", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<ArchiveRecord> archivedCertificate(@RequestBody Preferences prefs, @RequestParam String ra,
+      @RequestParam String tipo) throws IOException {
+    try {
+      val record = archiveWriter.find(prefs, ra, tipo);
+      return record == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(record);
+    } catch (IllegalArgumentException e) {
+      return ResponseEntity.badRequest().build();
+    }
+  }
+
+  /**
+   * Download da copia local arquivada: {@code arquivo=pdf} (padrao) ou {@code arquivo=p7s}.
+   */
+  @PostMapping("/archive/download")
+  public void archivedCertificateDownload(@RequestBody Preferences prefs, @RequestParam String ra, @RequestParam String tipo,
+      @RequestParam(defaultValue = "pdf") String arquivo, HttpServletResponse response) throws IOException {
+    final Path file;
+    try {
+      file = "pdf".equals(arquivo) || "p7s".equals(arquivo) ? archiveWriter.locate(prefs, ra, tipo, arquivo) : null;
+    } catch (IllegalArgumentException e) {
+      response.sendError(HttpStatus.BAD_REQUEST.value());
+      return;
+    }
+    if (file == null) {
+      response.sendError(HttpStatus.NOT_FOUND.value());
+      return;
+    }
+    response.setContentType("pdf".equals(arquivo) ? "application/pdf" : "application/pkcs7-signature");
+    response.setContentLengthLong(Files.size(file));
+    response.setHeader("Content-Disposition", "attachment;filename=RA" + ra + "." + arquivo);
+    Files.copy(file, response.getOutputStream());
+  }
+
+  /**
+   * Verificacao local da assinatura destacada de um certificado ({@code certificado.pdf} + {@code certificado.assinatura}).
+   */
+  @PostMapping(value = "/token/certificate/verificar", produces = MediaType.APPLICATION_JSON_VALUE)
+  public VerificationResult verificar(@RequestBody AssinaturaEntity clientEntity) {
+    val certificado = clientEntity.getCertificado();
+    return verificationService.verify(String.valueOf(certificado.getRa()), certificado.getPdf(), certificado.getAssinatura());
+  }
+
+  /**
+   * Verificacao em lote de todas as copias locais em {@code pasta} (padrao: pasta de copias das preferencias).
+   */
+  @PostMapping(value = "/token/certificate/verificar/lote", produces = MediaType.APPLICATION_JSON_VALUE)
+  public CompletableFuture<ResponseEntity<VerificationReport>> verificarLote(@RequestBody Preferences prefs,
+      @RequestParam(required = false) String pasta) {
+    return CompletableFuture.supplyAsync(() -> {
+      val folder = Paths.get(StringUtils.isEmpty(pasta) ? prefs.getConfig().getPdfFileSavingLocation() : pasta);
+      if (!Files.isDirectory(folder))
+        return ResponseEntity.notFound().<VerificationReport>build();
+      try {
+        return ResponseEntity.ok(verificationService.verifyFolder(folder));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+    }, serverCallExecutor);
   }
 
   @PostMapping("/token/solicitar_senha")
@@ -246,57 +455,72 @@ public class ClientController {
   }
 
   @PostMapping("/token/certificate/assinar")
-  public AssinaturaEntity assinar(@RequestBody AssinaturaEntity clientEntity, @RequestParam String alias) {
-    try {
-      val notSignedDTOCertificate = clientEntity.getCertificado();
-      val prefs = clientEntity.getPreferences();
-      val cpf = clientEntity.getCertificado().getAssinaUsuario().getCpf();
-
-      // SERMIL - gerar pdf
-      notSignedDTOCertificate.setPdf(communicationService.getSignablePdf(notSignedDTOCertificate, cpf, prefs));
-
-      // LOCAL - assinar pdf
-      val signedDTOCertificate = tokenService.signDTOCertificate(notSignedDTOCertificate, alias, prefs);
-
-      // SERMIL - persistir pdf e assinatura
-      val serverResponseEntity = communicationService.saveSignedDTOCertificate(signedDTOCertificate, cpf, prefs);
+  public CompletableFuture<AssinaturaEntity> assinar(@RequestBody AssinaturaEntity clientEntity, @RequestParam String alias) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        val notSignedDTOCertificate = clientEntity.getCertificado();
+        val prefs = clientEntity.getPreferences();
+        val cpf = clientEntity.getCertificado().getAssinaUsuario().getCpf();
+        return signingService.sign(notSignedDTOCertificate, alias, cpf, prefs);
+      } catch (Exception e) {
+        log.error(e.getMessage());
+        return new AssinaturaEntity()
+            .addErrorMsg(messages.get("certificate.sign.error.v1", clientEntity.getCertificado().getCidadao().getNome()));
+      }
+    }, serverCallExecutor);
+  }
 
-      // store in local file system
-      tokenService.storeSignedPdfInLocalFileSystem(signedDTOCertificate, prefs, serverResponseEntity);
-      tokenService.storeSignatureInLocalFileSystem(signedDTOCertificate, prefs, serverResponseEntity);
+  /**
+   * Assina em lote todos os certificados de {@code clientEntity.getCertificados()} usando uma unica sessao do token (um unico
+   * signer). A falha de um certificado nao interrompe o lote: os certificados assinados voltam em {@code certificados} e cada
+   * falha e reportada como mensagem de erro. Com {@code pipeline=true} a busca dos pdfs e a persistencia rodam em paralelo com a
+   * assinatura no token (e, no modo PKCS#12, as proprias assinaturas rodam em paralelo).
+   */
+  @PostMapping("/token/certificate/assinar/lote")
+  public CompletableFuture<AssinaturaEntity> assinarLote(@RequestBody AssinaturaEntity clientEntity, @RequestParam String alias,
+      @RequestParam(defaultValue = "false") boolean pipeline) {
+    return CompletableFuture.supplyAsync(() -> {
+      if (clientEntity.getCertificados() == null || clientEntity.getCertificados().isEmpty())
+        return AssinaturaEntity.builder().certificados(new ArrayList<>()).build();
+      if (healthMonitorService.isAssinaturaServerDown(clientEntity.getPreferences()))
+        return new AssinaturaEntity().addErrorMsg(messages.get("diagnostic.assinatura.server.connection.error"));
+      try {
+        // no pipeline cada thread de assinatura obtem o signer da sua sessao
+        if (pipeline)
+          return signingService.signPipelined(clientEntity.getCertificados(), alias, clientEntity.getPreferences());
+        return signingService.signBatch(clientEntity.getCertificados(), tokenService.getSigner(alias), clientEntity.getPreferences());
+      } catch (Exception e) {
+        log.error("ERRO AO INICIAR O PROCESSO DE ASSINATURA EM LOTE: {}", e.getMessage());
+        return handleException(e);
+      }
+    }, serverCallExecutor);
+  }
 
-      // retornar certificado assinado
-      serverResponseEntity.setCertificado(signedDTOCertificate);
-      return serverResponseEntity;
+  /**
+   * Metricas locais de desempenho; somente para acessos da propria maquina.
+   */
+  @GetMapping(value = "/metrics/local", produces = MediaType.APPLICATION_JSON_VALUE)
+  public ResponseEntity<Map<String, Object>> localMetrics(HttpServletRequest request) throws UnknownHostException {
+    if (!InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress())
+      return ResponseEntity.status(HttpStatus.FORBIDDEN).build();
+    return ResponseEntity.ok(metrics.snapshot());
+  }
 
-    } catch (Exception e) {
-      log.error(e.getMessage());
-      return new AssinaturaEntity()
-          .addErrorMsg(messages.get("certificate.sign.error.v1", clientEntity.getCertificado().getCidadao().getNome()));
-    }
+  /**
+   * Certificados assinados do diario local: quantos aguardam reenvio e quais o servidor recusou.
+   */
+  @GetMapping(value = "/journal/status", produces = MediaType.APPLICATION_JSON_VALUE)
+  public Map<String, Object> journalStatus() throws IOException {
+    val status = new LinkedHashMap<String, Object>();
+    status.put("pendentes", offlineJournal.getPendingCount());
+    status.put("recusados", offlineJournal.getFailed());
+    return status;
   }
 
   @RequestMapping(value = { "window/exit" })
   public void exit() {
     log.info("USUARIO SOLICITOU TERMINO DO PROCESSO");
-    Platform.exit();
-  }
-
-  private Preferences readPreferencesFile(String prefFileLocation) throws IOException, GeneralSecurityException {
-    byte[] line = Files.readAllBytes(new File(prefFileLocation).toPath());
-    Preferences prefs = new ObjectMapper().readValue(line, Preferences.class);
-    if (prefs.getConfig() != null && prefs.getConfig().getProxy() != null
-        && !StringUtils.isEmpty(prefs.getConfig().getProxy().getPassword()))
-      prefs.getConfig().getProxy().setPassword(CryptoUtil.decrypt(prefs.getConfig().getProxy().getPassword()));
-    return prefs;
-  }
-
-  private void savePreferencesFile(Preferences prefs) throws GeneralSecurityException, IOException {
-    if (prefs.getConfig() != null && prefs.getConfig().getProxy() != null
-        && !StringUtils.isEmpty(prefs.getConfig().getProxy().getPassword()))
-      prefs.getConfig().getProxy().setPassword(CryptoUtil.encrypt(prefs.getConfig().getProxy().getPassword()));
-    FileUtils.writeByteArrayToFile(new File(env.getProperty("application.preferences.file")),
-        new ObjectMapper().writeValueAsString(prefs).getBytes());
+    windowService.exit();
   }
 
   private AssinaturaEntity handleException(Exception e) {
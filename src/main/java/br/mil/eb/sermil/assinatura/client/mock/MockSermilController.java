@@ -0,0 +1,172 @@
+package br.mil.eb.sermil.assinatura.client.mock;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import br.mil.eb.sermil.assinatura.core.util.Constants;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Substituto local do Assinatura Servidor para testes de carga e de longa duracao, ativo somente no perfil {@code mock-server}
+ * (que tambem aponta {@code local.server.url} e {@code remote.server.url} para {@code /mock-sermil}). Latencia
+ * ({@code mock.sermil.latency.ms} + ate {@code mock.sermil.latency.jitter.ms}), tamanho dos pdfs e imagens, quantidade de
+ * certificados e a taxa de falhas injetadas ({@code mock.sermil.error.rate}, respondidas com {@code mock.sermil.error.status})
+ * sao configuraveis.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Profile("mock-server")
+@RestController
+@RequestMapping(value = "/mock-sermil", produces = MediaType.APPLICATION_JSON_VALUE)
+public class MockSermilController {
+
+  private static final long FIRST_RA = 100000000000L;
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  private final AtomicLong persisted = new AtomicLong();
+
+  private byte[] pdf;
+
+  private byte[] image;
+
+  @PostConstruct
+  private void init() {
+    pdf = payload("%PDF-1.4\n", env.getProperty("mock.sermil.pdf.bytes", Integer.class, 256 * 1024));
+    image = payload("\u0089PNG\r\n", env.getProperty("mock.sermil.image.bytes", Integer.class, 64 * 1024));
+    log.warn("ASSINATURA SERVIDOR SIMULADO ATIVO EM /mock-sermil (pdf: {} bytes, imagem: {} bytes).", pdf.length, image.length);
+  }
+
+  @GetMapping("/autoteste")
+  public ResponseEntity<JsonNode> autoteste() {
+    return respond(() -> entity().set("infoMsgs", objectMapper.createArrayNode().add(Constants.ASSINATURA_SERVIDOR_FUNCIONANDO)));
+  }
+
+  @GetMapping("/version/check")
+  public ResponseEntity<JsonNode> versionCheck() {
+    return respond(() -> entity().put("version", env.getProperty("application.version")));
+  }
+
+  @GetMapping("/user/info")
+  public ResponseEntity<JsonNode> userInfo() {
+    return respond(() -> entity().set("usuario", usuario()));
+  }
+
+  @GetMapping("/user/jsms")
+  public ResponseEntity<JsonNode> userJsms() {
+    return respond(this::entity);
+  }
+
+  @PostMapping("/user/certificates")
+  public ResponseEntity<JsonNode> userCertificates() {
+    return respond(() -> {
+      val certificados = objectMapper.createArrayNode();
+      val count = env.getProperty("mock.sermil.certificates", Integer.class, 20);
+      for (int i = 0; i < count; i++)
+        certificados.add(certificado(FIRST_RA + i));
+      val ae = entity();
+      ae.set("usuario", usuario());
+      ae.set("certificados", certificados);
+      return ae;
+    });
+  }
+
+  @PostMapping("/user/certificate/pdf")
+  public ResponseEntity<JsonNode> userCertificatePdf(@RequestBody JsonNode body) {
+    return respond(() -> {
+      val certificado = body.path("certificado").isObject() ? (ObjectNode) body.get("certificado") : certificado(FIRST_RA);
+      certificado.put("pdf", pdf);
+      return entity().set("certificado", certificado);
+    });
+  }
+
+  @PostMapping("/user/certificate/image")
+  public ResponseEntity<JsonNode> userCertificateImage(@RequestBody JsonNode certificado) {
+    return respond(() -> {
+      val copy = certificado.isObject() ? (ObjectNode) certificado : certificado(FIRST_RA);
+      copy.remove("pdf");
+      copy.put("image", image);
+      return entity().set("certificado", copy);
+    });
+  }
+
+  @PostMapping("/token/certificate/persistir")
+  public ResponseEntity<JsonNode> persistir(@RequestBody JsonNode body) {
+    return respond(() -> {
+      val total = persisted.incrementAndGet();
+      if (total % 1000 == 0)
+        log.info("Assinatura Servidor simulado: {} certificados persistidos.", total);
+      return entity().set("infoMsgs", objectMapper.createArrayNode().add("Certificado " + body.path("certificado").path("ra").asText() + " salvo."));
+    });
+  }
+
+  private ResponseEntity<JsonNode> respond(Supplier<ObjectNode> body) {
+    val random = ThreadLocalRandom.current();
+    val latency = env.getProperty("mock.sermil.latency.ms", Long.class, 50L);
+    val jitter = env.getProperty("mock.sermil.latency.jitter.ms", Long.class, 0L);
+    try {
+      Thread.sleep(latency + (jitter > 0 ? random.nextLong(jitter + 1) : 0));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (random.nextDouble() < env.getProperty("mock.sermil.error.rate", Double.class, 0d)) {
+      val status = HttpStatus.valueOf(env.getProperty("mock.sermil.error.status", Integer.class, 503));
+      return ResponseEntity.status(status)
+          .body(entity().set("errorMsgs", objectMapper.createArrayNode().add("Falha simulada pelo Assinatura Servidor (" + status.value() + ").")));
+    }
+    return ResponseEntity.ok(body.get());
+  }
+
+  private ObjectNode entity() {
+    return objectMapper.createObjectNode();
+  }
+
+  private ObjectNode usuario() {
+    return objectMapper.createObjectNode().put("cpf", env.getProperty("mock.sermil.cpf", "55555555555"));
+  }
+
+  private ObjectNode certificado(long ra) {
+    val certificado = objectMapper.createObjectNode();
+    certificado.put("ra", ra);
+    certificado.put("tipo", 1);
+    certificado.set("cidadao", objectMapper.createObjectNode().put("nome", "CIDADAO SIMULADO " + ra));
+    return certificado;
+  }
+
+  private static byte[] payload(String header, int size) {
+    val bytes = new byte[Math.max(size, header.length())];
+    ThreadLocalRandom.current().nextBytes(bytes);
+    val prefix = header.getBytes(StandardCharsets.ISO_8859_1);
+    System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+    return bytes;
+  }
+
+}
@@ -0,0 +1,349 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Indice do arquivo local enderecado por conteudo: (RA, tipo) para {@link ArchiveRecord}, em uma tabela hash de enderecamento
+ * aberto gravada em {@code index-<capacidade>.dat} na raiz do arquivo e mapeada em memoria. Consultar se um RA ja foi assinado ou
+ * localizar a copia e O(1) e nunca lista diretorios.
+ * <p>
+ * Formato: cabecalho de 64 bytes (magic, versao, capacidade, quantidade) seguido de {@code capacidade} slots de 128 bytes (RA,
+ * tipo, ocupado, CPF, timestamp, SHA-256 do pdf, SHA-256 da assinatura). RA e tipo sao guardados por inteiro e precisam ser
+ * numericos, de modo que dois certificados nunca compartilham uma entrada. Com 70% de ocupacao a tabela e copiada para um arquivo com o dobro da capacidade; o
+ * arquivo anterior e removido quando possivel (no Windows so apos ser desmapeado, na proxima abertura).
+ * <p>
+ * Um unico escritor (o {@link ArchiveWriter}) e varios leitores.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+public final class ArchiveIndex implements Closeable {
+
+  private static final int MAGIC = 0x53414931;
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER = 64;
+
+  private static final int SLOT = 128;
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private final Path root;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+  private FileChannel channel;
+
+  private MappedByteBuffer map;
+
+  private int capacity;
+
+  private int size;
+
+  private ArchiveIndex(Path root) {
+    this.root = root;
+  }
+
+  /**
+   * Abre (ou cria) o indice da raiz {@code root}, usando o arquivo de maior capacidade encontrado.
+   */
+  public static ArchiveIndex open(Path root) throws IOException {
+    Files.createDirectories(root);
+    val index = new ArchiveIndex(root);
+    int capacity = INITIAL_CAPACITY;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "index-*.dat")) {
+      for (val file : files)
+        if (isComplete(file))
+          capacity = Math.max(capacity, capacityOf(file));
+    }
+    index.map(capacity, true);
+    index.deleteOtherGenerations();
+    return index;
+  }
+
+  /**
+   * Abre o indice ja existente da raiz {@code root} sem criar nem remover nada; {@code null} se nao houver indice.
+   */
+  public static ArchiveIndex openExisting(Path root) throws IOException {
+    if (!Files.isDirectory(root))
+      return null;
+    int capacity = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "index-*.dat")) {
+      for (val file : files)
+        if (isComplete(file))
+          capacity = Math.max(capacity, capacityOf(file));
+    }
+    if (capacity == 0)
+      return null;
+    val index = new ArchiveIndex(root);
+    index.map(capacity, true);
+    return index;
+  }
+
+  /**
+   * Local do pdf ({@code ext = "pdf"}) ou da assinatura ({@code ext = "p7s"}) de conteudo {@code hash}:
+   * {@code objects/ab/cd/abcd....ext}.
+   */
+  public static Path objectPath(Path root, String hash, String ext) {
+    return root.resolve("objects").resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash + "." + ext);
+  }
+
+  /**
+   * Local do pdf ({@code ext = "pdf"}, pelo SHA-256 do pdf) ou da assinatura ({@code ext = "p7s"}, pelo SHA-256 da propria
+   * assinatura) da entrada.
+   */
+  public Path objectPath(ArchiveRecord record, String ext) {
+    return objectPath(root, "p7s".equals(ext) ? record.getSignatureHash() : record.getHash(), ext);
+  }
+
+  /**
+   * Chave do RA: somente digitos (ate 18).
+   *
+   * @throws IllegalArgumentException se o RA nao for numerico
+   */
+  public static long raKey(Object ra) {
+    return Long.parseLong(digits(ra, 18, "RA"));
+  }
+
+  /**
+   * Chave do tipo: somente digitos (ate 9).
+   *
+   * @throws IllegalArgumentException se o tipo nao for numerico
+   */
+  public static int tipoKey(Object tipo) {
+    return Integer.parseInt(digits(tipo, 9, "tipo"));
+  }
+
+  private static String digits(Object value, int max, String name) {
+    val text = String.valueOf(value).trim();
+    if (!text.matches("\\d{1," + max + "}"))
+      throw new IllegalArgumentException(name + " invalido para o arquivo local: " + text);
+    return text;
+  }
+
+  public ArchiveRecord find(long ra, int tipo) {
+    lock.readLock().lock();
+    try {
+      val slot = locate(map, capacity, ra, tipo);
+      if (!used(map, slot))
+        return null;
+      return read(slot);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Inclui ou substitui a entrada de (RA, tipo). Visivel para os leitores imediatamente; duravel apos {@link #force()}.
+   */
+  public void put(ArchiveRecord record) throws IOException {
+    lock.writeLock().lock();
+    try {
+      int slot = locate(map, capacity, record.getRa(), record.getTipo());
+      if (!used(map, slot)) {
+        if ((size + 1) * 10L > capacity * 7L) {
+          grow();
+          slot = locate(map, capacity, record.getRa(), record.getTipo());
+        }
+        size++;
+        map.putInt(12, size);
+      }
+      val cpf = record.getCpf() == null ? "" : record.getCpf().replaceAll("\\D", "");
+      write(map, slot, record.getRa(), record.getTipo(), cpf.isEmpty() ? -1 : Long.parseLong(cpf), record.getTimestamp(),
+          Digests.fromHex(record.getHash()), Digests.fromHex(record.getSignatureHash()));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Todas as entradas, em ordem de slot.
+   */
+  public List<ArchiveRecord> records() {
+    lock.readLock().lock();
+    try {
+      val records = new ArrayList<ArchiveRecord>(size);
+      for (int slot = 0; slot < capacity; slot++)
+        if (used(map, slot))
+          records.add(read(slot));
+      return records;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public void force() {
+    lock.readLock().lock();
+    try {
+      map.force();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      map.force();
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Mapeia {@code index-<newCapacity>.dat}. Um arquivo novo so recebe o magic (e passa a ser considerado completo) quando
+   * {@code complete}; na ampliacao isso acontece depois da copia das entradas.
+   */
+  private void map(int newCapacity, boolean complete) throws IOException {
+    val file = root.resolve("index-" + newCapacity + ".dat");
+    val reuse = complete && isComplete(file);
+    if (!reuse)
+      Files.deleteIfExists(file);
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) newCapacity * SLOT);
+    capacity = newCapacity;
+    if (reuse) {
+      size = map.getInt(12);
+    } else {
+      map.putInt(4, VERSION);
+      map.putInt(8, capacity);
+      map.putInt(12, 0);
+      size = 0;
+      if (complete)
+        map.putInt(0, MAGIC);
+    }
+  }
+
+  private static boolean isComplete(Path file) {
+    try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+      val header = ByteBuffer.allocate(HEADER);
+      in.read(header, 0);
+      return header.position() == HEADER && header.getInt(0) == MAGIC && header.getInt(4) == VERSION
+          && in.size() == HEADER + (long) header.getInt(8) * SLOT && header.getInt(8) == capacityOf(file);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Copia as entradas para uma tabela com o dobro da capacidade; o novo arquivo so passa a valer depois de completo e gravado.
+   */
+  private void grow() throws IOException {
+    val oldChannel = channel;
+    val oldMap = map;
+    val oldCapacity = capacity;
+    val oldSize = size;
+    map(oldCapacity * 2, false);
+    for (int slot = 0; slot < oldCapacity; slot++) {
+      if (!used(oldMap, slot))
+        continue;
+      val base = HEADER + slot * SLOT;
+      val target = locate(map, capacity, oldMap.getLong(base), oldMap.getInt(base + 8));
+      for (int i = 0; i < SLOT; i++)
+        map.put(HEADER + target * SLOT + i, oldMap.get(base + i));
+    }
+    size = oldSize;
+    map.putInt(12, size);
+    map.force();
+    map.putInt(0, MAGIC);
+    map.force();
+    oldChannel.close();
+    log.info("Indice do arquivo local ampliado para {} entradas.", capacity);
+    deleteOtherGenerations();
+  }
+
+  private void deleteOtherGenerations() {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(root, "index-*.dat")) {
+      for (val file : files)
+        if (capacityOf(file) != capacity)
+          Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.debug("Indice antigo ainda em uso, removido na proxima abertura: {}", e.getMessage());
+    }
+  }
+
+  private static int capacityOf(Path file) {
+    val name = file.getFileName().toString();
+    try {
+      return Integer.parseInt(name.substring("index-".length(), name.length() - ".dat".length()));
+    } catch (NumberFormatException e) {
+      return INITIAL_CAPACITY;
+    }
+  }
+
+  private static int locate(MappedByteBuffer map, int capacity, long ra, int tipo) {
+    long h = ra * 31 + tipo;
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    int slot = (int) ((h & Long.MAX_VALUE) % capacity);
+    while (used(map, slot)) {
+      val base = HEADER + slot * SLOT;
+      if (map.getLong(base) == ra && map.getInt(base + 8) == tipo)
+        return slot;
+      slot = (slot + 1) % capacity;
+    }
+    return slot;
+  }
+
+  private static boolean used(MappedByteBuffer map, int slot) {
+    return map.getInt(HEADER + slot * SLOT + 12) == 1;
+  }
+
+  private static void write(MappedByteBuffer map, int slot, long ra, int tipo, long cpf, long timestamp, byte[] pdfSha256,
+      byte[] signatureSha256) {
+    val base = HEADER + slot * SLOT;
+    map.putLong(base, ra);
+    map.putInt(base + 8, tipo);
+    map.putLong(base + 16, cpf);
+    map.putLong(base + 24, timestamp);
+    for (int i = 0; i < 32; i++) {
+      map.put(base + 32 + i, pdfSha256[i]);
+      map.put(base + 64 + i, signatureSha256[i]);
+    }
+    map.putInt(base + 12, 1);
+  }
+
+  private ArchiveRecord read(int slot) {
+    val base = HEADER + slot * SLOT;
+    val pdfSha256 = new byte[32];
+    val signatureSha256 = new byte[32];
+    for (int i = 0; i < 32; i++) {
+      pdfSha256[i] = map.get(base + 32 + i);
+      signatureSha256[i] = map.get(base + 64 + i);
+    }
+    val cpf = map.getLong(base + 16);
+    return new ArchiveRecord(map.getLong(base), map.getInt(base + 8), cpf < 0 ? null : String.format("%011d", cpf),
+        map.getLong(base + 24), Digests.toHex(pdfSha256), Digests.toHex(signatureSha256));
+  }
+
+}
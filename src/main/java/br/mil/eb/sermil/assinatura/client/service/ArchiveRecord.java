@@ -0,0 +1,31 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Entrada do {@link ArchiveIndex}: certificado (RA e tipo), CPF de quem assinou, momento da copia e os SHA-256 do pdf e da
+ * assinatura, que determinam onde cada um esta no arquivo local. Assinar de novo o mesmo pdf gera outra assinatura, em outro
+ * arquivo, sem sobrescrever a anterior.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class ArchiveRecord {
+
+  private final long ra;
+
+  private final int tipo;
+
+  private final String cpf;
+
+  private final long timestamp;
+
+  private final String hash;
+
+  private final String signatureHash;
+
+}
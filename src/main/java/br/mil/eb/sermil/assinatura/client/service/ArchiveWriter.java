@@ -0,0 +1,495 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Copias locais dos certificados assinados (pdf e assinatura p7s) na pasta escolhida pelo usuario, gravadas fora da thread da
+ * requisicao: a resposta da assinatura volta assim que o certificado e persistido no Sermil.
+ * <p>
+ * As gravacoes entram numa fila limitada ({@code archive.queue.size}) e uma unica thread as grava em lotes de ate
+ * {@code archive.batch.size}: todos os arquivos do lote sao escritos em temporarios na pasta de destino, depois recebem fsync em
+ * sequencia e so entao sao renomeados atomicamente. Com a fila cheia por mais de {@code archive.offer.timeout.ms} a gravacao e
+ * feita na propria thread de quem pediu. Copias que nao puderam ser gravadas sao devolvidas por {@link #drainFailures()} para
+ * serem informadas ao usuario na resposta seguinte.
+ * <p>
+ * Com {@code application.archive.content-addressed} as copias deixam de ir para a pasta plana ({@code RA_<ra>-<data>-<tipo>.pdf})
+ * e passam a ser enderecadas pelo conteudo: o pdf pelo seu SHA-256 ({@code objects/ab/cd/<sha256>.pdf}, pdfs iguais gravados uma
+ * unica vez) e a assinatura pelo SHA-256 do p7s, de modo que assinar de novo o mesmo pdf nao sobrescreve a assinatura anterior. Um
+ * {@link ArchiveIndex} por pasta localiza a copia de um RA sem listar diretorios; consultas nunca criam o indice.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class ArchiveWriter {
+
+  private static final DateTimeFormatter FILE_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd_HHmm");
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private Metrics metrics;
+
+  @Autowired
+  private Messages messages;
+
+  private BlockingQueue<Entry> queue;
+
+  private Thread writer;
+
+  private volatile boolean running = true;
+
+  private final AtomicLong submitted = new AtomicLong();
+
+  private long written;
+
+  private final ConcurrentMap<Path, ArchiveIndex> indexes = new ConcurrentHashMap<>();
+
+  /**
+   * Mensagens das copias que falharam e ainda nao foram informadas; as mais antigas sao descartadas alem de
+   * {@code archive.failures.max}.
+   */
+  private final Deque<String> failures = new ArrayDeque<>();
+
+  @PostConstruct
+  private void init() {
+    queue = new ArrayBlockingQueue<>(env.getProperty("archive.queue.size", Integer.class, 64));
+    writer = new Thread(this::drain, "archive-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Grava o que ainda estiver na fila antes de encerrar.
+   */
+  @PreDestroy
+  private void destroy() throws InterruptedException {
+    running = false;
+    writer.join(env.getProperty("archive.shutdown.timeout.ms", Long.class, 10000L));
+    for (val index : indexes.values()) {
+      try {
+        index.close();
+      } catch (IOException e) {
+        log.error("ERRO AO FECHAR O INDICE DO ARQUIVO LOCAL: {}", e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Agenda as copias do pdf (em {@code signedDTOCertificate.getPdf()}) e da assinatura, se o usuario pediu copia local.
+   */
+  public void archive(final CidDocMilitarDTO signedDTOCertificate, final Preferences preferences) {
+    if (!isEnabled(preferences) || signedDTOCertificate.getPdf() == null)
+      return;
+    submit(new Entry(signedDTOCertificate, signedDTOCertificate.getAssinatura(), signedDTOCertificate.getPdf(), null, null, preferences));
+  }
+
+  /**
+   * Versao streaming: o arquivo temporario do pdf passa a pertencer ao writer (e movido, nao copiado), de modo que fechar o
+   * {@link PdfFile} em seguida nao o remove.
+   */
+  public void archive(final CidDocMilitarDTO signedDTOCertificate, final PdfFile pdf, final Preferences preferences) {
+    if (!isEnabled(preferences))
+      return;
+    try {
+      val staged = Files.createTempFile("assinatura-archive-", ".pdf");
+      Files.move(pdf.getPath(), staged, StandardCopyOption.REPLACE_EXISTING);
+      submit(new Entry(signedDTOCertificate, signedDTOCertificate.getAssinatura(), null, staged, pdf.getSha256(), preferences));
+    } catch (IOException e) {
+      failed(signedDTOCertificate, "pdf", e);
+    }
+  }
+
+  /**
+   * Copia arquivada de (RA, tipo) na pasta das preferencias, ou {@code null}. So existe no modo enderecado por conteudo.
+   */
+  public ArchiveRecord find(final Preferences preferences, final Object ra, final Object tipo) throws IOException {
+    if (!isContentAddressed() || !isEnabled(preferences))
+      return null;
+    val index = existingIndex(root(preferences));
+    return index == null ? null : index.find(ArchiveIndex.raKey(ra), ArchiveIndex.tipoKey(tipo));
+  }
+
+  /**
+   * Arquivo {@code ext} ("pdf" ou "p7s") da copia de (RA, tipo), ou {@code null}.
+   */
+  public Path locate(final Preferences preferences, final Object ra, final Object tipo, final String ext) throws IOException {
+    val record = find(preferences, ra, tipo);
+    if (record == null)
+      return null;
+    val file = existingIndex(root(preferences)).objectPath(record, ext);
+    return Files.exists(file) ? file : null;
+  }
+
+  /**
+   * Entradas do indice da pasta {@code root} (vazio se nao houver indice), lidas da mesma instancia mapeada usada pelo writer: a
+   * pasta nunca e mapeada duas vezes.
+   */
+  public List<ArchiveRecord> records(final Path root) throws IOException {
+    val index = existingIndex(root.toAbsolutePath().normalize());
+    return index == null ? Collections.emptyList() : index.records();
+  }
+
+  private boolean isContentAddressed() {
+    return env.getProperty("application.archive.content-addressed", Boolean.class, false);
+  }
+
+  private static boolean isEnabled(final Preferences preferences) {
+    return preferences.getConfig().isSavePdfFileInMyLocalSystem() && !StringUtils.isEmpty(preferences.getConfig().getPdfFileSavingLocation());
+  }
+
+  /**
+   * Aguarda, por ate {@code timeoutMs}, a gravacao de tudo o que foi agendado ate agora. {@code false} se o tempo acabou antes.
+   */
+  public boolean flush(final long timeoutMs) throws InterruptedException {
+    val target = submitted.get();
+    val deadline = System.currentTimeMillis() + timeoutMs;
+    synchronized (this) {
+      while (written < target) {
+        val remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0)
+          return false;
+        wait(remaining);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Mensagens das copias locais que falharam desde a ultima chamada.
+   */
+  public List<String> drainFailures() {
+    synchronized (failures) {
+      if (failures.isEmpty())
+        return Collections.emptyList();
+      val drained = new ArrayList<String>(failures);
+      failures.clear();
+      return drained;
+    }
+  }
+
+  private void submit(final Entry entry) {
+    submitted.incrementAndGet();
+    try {
+      if (running && queue.offer(entry, env.getProperty("archive.offer.timeout.ms", Long.class, 5000L), TimeUnit.MILLISECONDS))
+        return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.warn("Fila de copias locais cheia, gravando o certificado RA {} na thread da requisicao.", entry.certificado.getRa());
+    try {
+      write(Collections.singletonList(entry));
+    } finally {
+      written(1);
+    }
+  }
+
+  private synchronized void written(final int count) {
+    written += count;
+    notifyAll();
+  }
+
+  private void drain() {
+    val batchSize = env.getProperty("archive.batch.size", Integer.class, 32);
+    val batch = new ArrayList<Entry>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        val first = queue.poll(200, TimeUnit.MILLISECONDS);
+        if (first == null)
+          continue;
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        try {
+          write(batch);
+        } finally {
+          written(batch.size());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (RuntimeException e) {
+        log.error("ERRO NA GRAVACAO DAS COPIAS LOCAIS: {}", e.getMessage());
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  /**
+   * Grava um lote: temporarios na pasta de destino, fsync de todos, renames atomicos, fsync das pastas (quando o sistema
+   * operacional permite abrir diretorios) e, no modo enderecado por conteudo, atualizacao dos indices.
+   */
+  private void write(final List<Entry> batch) {
+    val start = System.nanoTime();
+    val now = LocalDateTime.now();
+    val files = new ArrayList<FileWrite>(batch.size() * 2);
+    for (val entry : batch) {
+      try {
+        if (isContentAddressed()) {
+          val root = root(entry.preferences);
+          val ra = ArchiveIndex.raKey(entry.certificado.getRa());
+          val tipo = ArchiveIndex.tipoKey(entry.certificado.getTipo());
+          val hash = Digests.toHex(entry.sha256());
+          val signatureHash = Digests.toHex(Digests.sha256(entry.signature));
+          val pdf = ArchiveIndex.objectPath(root, hash, "pdf");
+          if (!Files.exists(pdf))
+            files.add(stage(entry, pdf, entry.openPdf()));
+          val p7s = ArchiveIndex.objectPath(root, signatureHash, "p7s");
+          if (!Files.exists(p7s))
+            files.add(stage(entry, p7s, new ByteArrayInputStream(entry.signature)));
+          entry.record = new ArchiveRecord(ra, tipo, entry.cpf(), System.currentTimeMillis(), hash, signatureHash);
+        } else {
+          files.add(stage(entry, pdfPath(entry.certificado, entry.preferences, now), entry.openPdf()));
+          files.add(stage(entry, signaturePath(entry.certificado, entry.preferences, now), new ByteArrayInputStream(entry.signature)));
+        }
+      } catch (IOException | IllegalArgumentException e) {
+        failed(entry.certificado, "pdf/p7s", e);
+        entry.failed = true;
+      }
+    }
+    // fsync dos temporarios em sequencia, depois de todos escritos: o sistema de arquivos agrupa as gravacoes do lote
+    for (val file : files) {
+      if (file.entry.failed)
+        continue;
+      try (FileChannel channel = FileChannel.open(file.tmp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      } catch (IOException e) {
+        failed(file.entry.certificado, file.target.getFileName().toString(), e);
+        file.entry.failed = true;
+      }
+    }
+    val dirs = new LinkedHashSet<Path>();
+    for (val file : files) {
+      try {
+        if (!file.entry.failed) {
+          try {
+            Files.move(file.tmp, file.target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file.tmp, file.target, StandardCopyOption.REPLACE_EXISTING);
+          }
+          dirs.add(file.target.getParent());
+          metrics.increment("local.store.file");
+        }
+      } catch (IOException e) {
+        failed(file.entry.certificado, file.target.getFileName().toString(), e);
+        file.entry.failed = true;
+      } finally {
+        deleteQuietly(file.tmp);
+      }
+    }
+    for (val dir : dirs)
+      syncDirectory(dir);
+    val touched = new LinkedHashSet<ArchiveIndex>();
+    for (val entry : batch) {
+      try {
+        if (entry.record != null && !entry.failed) {
+          val index = index(root(entry.preferences));
+          index.put(entry.record);
+          touched.add(index);
+        }
+      } catch (IOException e) {
+        failed(entry.certificado, "indice", e);
+      } finally {
+        deleteQuietly(entry.staged);
+      }
+    }
+    for (val index : touched)
+      index.force();
+    metrics.record("local.store", start, "type", "batch");
+  }
+
+  /**
+   * Escreve o conteudo num temporario ao lado do destino; o fsync e feito depois, para o lote inteiro.
+   */
+  private static FileWrite stage(final Entry entry, final Path target, final InputStream content) throws IOException {
+    Files.createDirectories(target.getParent());
+    val tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try (InputStream in = content) {
+      Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      deleteQuietly(tmp);
+      throw e;
+    }
+    return new FileWrite(entry, target, tmp);
+  }
+
+  private ArchiveIndex index(final Path root) throws IOException {
+    try {
+      return indexes.computeIfAbsent(root, r -> {
+        try {
+          return ArchiveIndex.open(r);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Indice ja aberto pelo writer ou, para consultas, o existente na pasta; {@code null} se a pasta nao tiver indice.
+   */
+  private ArchiveIndex existingIndex(final Path root) throws IOException {
+    val cached = indexes.get(root);
+    if (cached != null)
+      return cached;
+    val opened = ArchiveIndex.openExisting(root);
+    if (opened == null)
+      return null;
+    val previous = indexes.putIfAbsent(root, opened);
+    if (previous != null) {
+      opened.close();
+      return previous;
+    }
+    return opened;
+  }
+
+  private static Path root(final Preferences preferences) {
+    return path(preferences.getConfig().getPdfFileSavingLocation().replace("\\", "/")).toAbsolutePath().normalize();
+  }
+
+  private static void syncDirectory(final Path dir) {
+    try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      // Windows nao permite abrir diretorios; o rename ja foi feito
+    }
+  }
+
+  private static void deleteQuietly(final Path path) {
+    if (path == null)
+      return;
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL REMOVER O ARQUIVO TEMPORARIO {}: {}", path, e.getMessage());
+    }
+  }
+
+  private void failed(final CidDocMilitarDTO certificado, final String what, final Exception e) {
+    metrics.increment("local.store.error");
+    val nome = certificado.getCidadao() == null ? String.valueOf(certificado.getRa()) : certificado.getCidadao().getNome();
+    log.error("NAO FOI POSSIVEL SALVAR A COPIA LOCAL ({}) DO CERTIFICADO DE {}: {}", what, nome, e.getMessage());
+    val max = env.getProperty("archive.failures.max", Integer.class, 100);
+    synchronized (failures) {
+      failures.addLast(messages.get("archive.error", nome));
+      while (failures.size() > max)
+        failures.removeFirst();
+    }
+  }
+
+  private Path pdfPath(final CidDocMilitarDTO signedDTOCertificate, final Preferences preferences, final LocalDateTime now) {
+    return path(new StringBuilder().append(preferences.getConfig().getPdfFileSavingLocation().replace("\\", File.separator))
+        .append(File.separator).append("RA_").append(signedDTOCertificate.getRa()).append("-").append(FILE_TIMESTAMP.format(now))
+        .append("-").append(signedDTOCertificate.getTipo()).append(".pdf").toString());
+  }
+
+  private Path signaturePath(final CidDocMilitarDTO signedDTOCertificate, final Preferences preferences, final LocalDateTime now) {
+    return path(new StringBuilder().append(preferences.getConfig().getPdfFileSavingLocation().replace("\\", "/")).append("/")
+        .append("RA_").append(signedDTOCertificate.getRa()).append("-").append(FILE_TIMESTAMP.format(now)).append("-ASSINATURA")
+        .append(".p7s").toString());
+  }
+
+  private static Path path(String fileName) {
+    if (fileName.startsWith("/") || fileName.startsWith(File.separator))
+      fileName = "C:" + fileName;
+    return Paths.get(fileName);
+  }
+
+  /**
+   * Copia local de um certificado: assinatura e pdf (em memoria ou no arquivo temporario movido para o writer).
+   */
+  private static final class Entry {
+    private final CidDocMilitarDTO certificado;
+    private final byte[] signature;
+    private final byte[] pdf;
+    private final Path staged;
+    private final Preferences preferences;
+    private byte[] sha256;
+    private ArchiveRecord record;
+    private boolean failed;
+
+    private Entry(final CidDocMilitarDTO certificado, final byte[] signature, final byte[] pdf, final Path staged, final byte[] sha256,
+        final Preferences preferences) {
+      this.certificado = certificado;
+      this.signature = signature;
+      this.pdf = pdf;
+      this.staged = staged;
+      this.sha256 = sha256;
+      this.preferences = preferences;
+    }
+
+    private InputStream openPdf() throws IOException {
+      return staged != null ? Files.newInputStream(staged) : new ByteArrayInputStream(pdf);
+    }
+
+    private byte[] sha256() {
+      if (sha256 == null)
+        sha256 = Digests.sha256(pdf);
+      return sha256;
+    }
+
+    private String cpf() {
+      return certificado.getAssinaUsuario() == null ? null : certificado.getAssinaUsuario().getCpf();
+    }
+  }
+
+  private static final class FileWrite {
+    private final Entry entry;
+    private final Path target;
+    private final Path tmp;
+
+    private FileWrite(final Entry entry, final Path target, final Path tmp) {
+      this.entry = entry;
+      this.target = target;
+      this.tmp = tmp;
+    }
+  }
+
+}
@@ -0,0 +1,235 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Imagens de pre-visualizacao dos certificados, por RA e tipo. Cache LRU limitado pelo total de bytes
+ * ({@code image.cache.max.bytes}) e carga antecipada das imagens da primeira pagina da lista de certificados do usuario
+ * ({@code image.prefetch.count} certificados, {@code image.prefetch.threads} requisicoes simultaneas e no maximo
+ * {@code image.prefetch.queue.size} aguardando; o excedente e carregado sob demanda).
+ * <p>
+ * Cada remocao ({@link #evict(CidDocMilitarDTO)}, {@link #clear()}) avanca a versao do cache: uma carga iniciada antes dela e
+ * entregue a quem a pediu, mas nao volta para o cache. A versao de remocao de uma chave so e guardada enquanto houver carga
+ * iniciada antes dela.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class CertificateImageCache {
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private CommunicationService communicationService;
+
+  private final LinkedHashMap<String, byte[]> images = new LinkedHashMap<>(64, 0.75f, true);
+
+  private final ConcurrentMap<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+
+  /** Versao em que cada chave foi removida pela ultima vez, enquanto alguma carga iniciada antes dela estiver em andamento. */
+  private final Map<String, Long> evicted = new HashMap<>();
+
+  /** Cargas em andamento por versao de inicio. */
+  private final TreeMap<Long, Integer> running = new TreeMap<>();
+
+  private long version;
+
+  private long clearedAt;
+
+  private long totalBytes;
+
+  private long maxBytes;
+
+  private int prefetchCount;
+
+  private ThreadPoolExecutor prefetchExecutor;
+
+  @PostConstruct
+  private void init() {
+    maxBytes = env.getProperty("image.cache.max.bytes", Long.class, 32L * 1024 * 1024);
+    prefetchCount = env.getProperty("image.prefetch.count", Integer.class, 20);
+    val threads = env.getProperty("image.prefetch.threads", Integer.class, 4);
+    val counter = new AtomicInteger();
+    prefetchExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(Math.max(1, env.getProperty("image.prefetch.queue.size", Integer.class, prefetchCount))), r -> {
+          val t = new Thread(r, "image-prefetch-" + counter.incrementAndGet());
+          t.setDaemon(true);
+          return t;
+        });
+  }
+
+  @PreDestroy
+  private void destroy() {
+    prefetchExecutor.shutdownNow();
+  }
+
+  /**
+   * Imagem do certificado: do cache, de uma carga antecipada em andamento ou buscada no Assinatura Servidor.
+   */
+  public byte[] getImage(CidDocMilitarDTO certificado, Preferences prefs) throws AssinaturaException {
+    val key = key(certificado);
+    val cached = get(key);
+    if (cached != null)
+      return cached;
+    val pending = inFlight.get(key);
+    if (pending != null) {
+      try {
+        return pending.join();
+      } catch (CompletionException | CancellationException e) {
+        log.error("FALHA NA CARGA ANTECIPADA DA IMAGEM DO RA {}: {}", certificado.getRa(), e.getMessage());
+      }
+    }
+    return fetch(key, certificado, prefs);
+  }
+
+  /**
+   * Carrega em segundo plano as imagens ainda ausentes do cache dos {@code image.prefetch.count} primeiros certificados (a
+   * pagina visivel). Para quando a fila de cargas antecipadas esta cheia.
+   */
+  public void prefetch(List<CidDocMilitarDTO> certificados, Preferences prefs) {
+    if (certificados == null)
+      return;
+    for (val certificado : certificados.subList(0, Math.min(prefetchCount, certificados.size()))) {
+      val key = key(certificado);
+      if (get(key) != null || certificado.getAssinaUsuario() == null)
+        continue;
+      val future = new CompletableFuture<byte[]>();
+      if (inFlight.putIfAbsent(key, future) != null)
+        continue;
+      try {
+        prefetchExecutor.execute(() -> {
+          try {
+            future.complete(fetch(key, certificado, prefs));
+          } catch (Throwable e) {
+            future.completeExceptionally(e);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        inFlight.remove(key, future);
+        future.cancel(false);
+        log.debug("Fila de carga antecipada de imagens cheia, restante sob demanda.");
+        return;
+      }
+      // fora do putIfAbsent: o callback pode rodar na hora e alterar o mapa
+      future.whenComplete((image, e) -> inFlight.remove(key, future));
+    }
+  }
+
+  /**
+   * Remove a imagem do certificado (ex.: apos a assinatura a imagem passa a ser outra). Uma carga em andamento nao volta para o
+   * cache.
+   */
+  public void evict(CidDocMilitarDTO certificado) {
+    val key = key(certificado);
+    synchronized (this) {
+      ++version;
+      if (!running.isEmpty())
+        evicted.put(key, version);
+      val removed = images.remove(key);
+      if (removed != null)
+        totalBytes -= removed.length;
+    }
+    inFlight.remove(key);
+  }
+
+  public void clear() {
+    synchronized (this) {
+      clearedAt = ++version;
+      evicted.clear();
+      images.clear();
+      totalBytes = 0;
+    }
+    inFlight.clear();
+  }
+
+  private byte[] fetch(String key, CidDocMilitarDTO certificado, Preferences prefs) throws AssinaturaException {
+    val started = started();
+    try {
+      val ae = communicationService.post(certificado, "/user/certificate/image", certificado.getAssinaUsuario().getCpf(), prefs);
+      if (ae.getErrorMsgs() != null && ae.getErrorMsgs().size() > 0)
+        throw new AssinaturaException(ae.getErrorMsgs().get(0));
+      val image = ae.getCertificado().getImage();
+      put(key, image, started);
+      return image;
+    } finally {
+      finished(started);
+    }
+  }
+
+  private synchronized long started() {
+    running.merge(version, 1, Integer::sum);
+    return version;
+  }
+
+  /**
+   * Encerra a carga iniciada em {@code started} e descarta as remocoes que nenhuma carga em andamento precisa mais consultar (as
+   * de versao ate a da carga mais antiga).
+   */
+  private synchronized void finished(long started) {
+    running.computeIfPresent(started, (v, count) -> count > 1 ? count - 1 : null);
+    if (running.isEmpty())
+      evicted.clear();
+    else {
+      val oldest = running.firstKey();
+      evicted.values().removeIf(v -> v <= oldest);
+    }
+  }
+
+  private synchronized byte[] get(String key) {
+    return images.get(key);
+  }
+
+  /**
+   * Guarda a imagem buscada a partir da versao {@code started}, descartando-a se a chave foi removida depois disso.
+   */
+  private synchronized void put(String key, byte[] image, long started) {
+    if (image == null || image.length > maxBytes)
+      return;
+    if (clearedAt > started || evicted.getOrDefault(key, 0L) > started)
+      return;
+    val previous = images.put(key, image);
+    totalBytes += image.length - (previous == null ? 0 : previous.length);
+    Iterator<Map.Entry<String, byte[]>> eldest = images.entrySet().iterator();
+    while (totalBytes > maxBytes && eldest.hasNext()) {
+      totalBytes -= eldest.next().getValue().length;
+      eldest.remove();
+    }
+  }
+
+  private static String key(CidDocMilitarDTO certificado) {
+    return certificado.getRa() + "-" + certificado.getTipo();
+  }
+
+}
@@ -0,0 +1,80 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import lombok.val;
+
+/**
+ * Leitura em streaming da resposta de {@code /user/certificates}: cada certificado e entregue ao consumidor assim que e lido,
+ * ja associado ao usuario da resposta. Quando o usuario vem depois da lista, os certificados ficam retidos ate ele ser lido.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public final class CertificateListReader {
+
+  private final ObjectMapper objectMapper;
+
+  public CertificateListReader(ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+  }
+
+  /**
+   * Le a resposta inteira e devolve quantos certificados foram entregues. Uma mensagem em {@code errorMsgs} vira
+   * {@link IOException}.
+   */
+  public int read(InputStream body, Consumer<CidDocMilitarDTO> consumer) throws IOException {
+    AssinaturaEntity usuario = null;
+    val pending = new ArrayList<CidDocMilitarDTO>();
+    int count = 0;
+    try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+      parser.nextToken();
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        val field = parser.getCurrentName();
+        val token = parser.nextToken();
+        if ("usuario".equals(field) && token == JsonToken.START_OBJECT) {
+          val holder = objectMapper.createObjectNode();
+          holder.set("usuario", objectMapper.readTree(parser));
+          usuario = objectMapper.treeToValue(holder, AssinaturaEntity.class);
+          for (val certificado : pending) {
+            certificado.setAssinaUsuario(usuario.getUsuario());
+            consumer.accept(certificado);
+          }
+          pending.clear();
+        } else if ("certificados".equals(field) && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            val certificado = objectMapper.readValue(parser, CidDocMilitarDTO.class);
+            count++;
+            if (usuario == null) {
+              pending.add(certificado);
+            } else {
+              certificado.setAssinaUsuario(usuario.getUsuario());
+              consumer.accept(certificado);
+            }
+          }
+        } else if ("errorMsgs".equals(field) && token == JsonToken.START_ARRAY) {
+          while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (parser.getCurrentToken() == JsonToken.VALUE_STRING)
+              throw new IOException(parser.getText());
+            parser.skipChildren();
+          }
+        } else
+          parser.skipChildren();
+      }
+    }
+    // resposta sem usuario
+    pending.forEach(consumer);
+    return count;
+  }
+
+}
@@ -0,0 +1,37 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.Date;
+
+import br.mil.eb.sermil.assinatura.core.type.CertICPBrasil;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Dados do certificado de um alias extraidos uma unica vez, na descoberta do token: {@link CertICPBrasil}, CPF, janela de
+ * validade e fingerprint SHA-256. Mantidos pelo {@link TokenService} ate o token ser removido ou atualizado.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class CertificateMetadata {
+
+  private final String alias;
+
+  private final CertICPBrasil certICPBrasil;
+
+  private final String cpf;
+
+  private final Date notBefore;
+
+  private final Date notAfter;
+
+  private final String fingerprint;
+
+  public boolean isValidAt(Date date) {
+    return !date.before(notBefore) && !date.after(notAfter);
+  }
+
+}
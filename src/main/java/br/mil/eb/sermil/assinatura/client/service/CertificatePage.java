@@ -0,0 +1,28 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.List;
+
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Uma pagina de {@code /user/certificates} e o cursor da proxima ({@code null} na ultima pagina).
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class CertificatePage {
+
+  private final List<CidDocMilitarDTO> certificados;
+
+  private final String nextCursor;
+
+  public boolean isHasMore() {
+    return nextCursor != null;
+  }
+
+}
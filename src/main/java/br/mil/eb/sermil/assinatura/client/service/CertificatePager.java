@@ -0,0 +1,104 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Paginacao de {@code /user/certificates}, que o servidor nao pagina. A primeira pagina le a lista uma unica vez e guarda uma
+ * copia; as seguintes sao servidas dessa copia pelo cursor {@code <copia>:<posicao>}. Assim os certificados assinados entre uma
+ * pagina e outra nao deslocam a lista e nenhum certificado e pulado.
+ * <p>
+ * As copias expiram apos {@code certificates.cursor.ttl.seconds} e no maximo {@code certificates.cursor.max} ficam em memoria.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class CertificatePager {
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private CommunicationService communicationService;
+
+  @Autowired
+  private Messages messages;
+
+  private final ConcurrentMap<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+  public CertificatePage page(String cpf, Preferences prefs, String cursor, int limit) throws AssinaturaException {
+    expire();
+    final Snapshot snapshot;
+    final int position;
+    if (StringUtils.isEmpty(cursor)) {
+      val certificados = new ArrayList<CidDocMilitarDTO>();
+      communicationService.readUserCertificates(cpf, prefs, certificados::add);
+      snapshot = new Snapshot(cpf, Collections.unmodifiableList(certificados));
+      snapshots.put(snapshot.id, snapshot);
+      position = 0;
+    } else {
+      val separator = cursor.lastIndexOf(':');
+      snapshot = separator < 0 ? null : snapshots.get(cursor.substring(0, separator));
+      if (snapshot == null || !snapshot.cpf.equals(cpf))
+        throw new AssinaturaException(messages.get("certificates.cursor.expired"));
+      try {
+        position = Math.min(Integer.parseInt(cursor.substring(separator + 1)), snapshot.certificados.size());
+      } catch (NumberFormatException e) {
+        throw new AssinaturaException(messages.get("certificates.cursor.expired"));
+      }
+    }
+    val end = Math.min(position + Math.max(limit, 1), snapshot.certificados.size());
+    val certificados = new ArrayList<CidDocMilitarDTO>(snapshot.certificados.subList(position, end));
+    if (end >= snapshot.certificados.size()) {
+      snapshots.remove(snapshot.id);
+      return new CertificatePage(certificados, null);
+    }
+    return new CertificatePage(certificados, snapshot.id + ":" + end);
+  }
+
+  private void expire() {
+    val ttl = env.getProperty("certificates.cursor.ttl.seconds", Long.class, 600L) * 1000;
+    val now = System.currentTimeMillis();
+    snapshots.values().removeIf(s -> now - s.createdAt > ttl);
+    val max = env.getProperty("certificates.cursor.max", Integer.class, 16);
+    while (snapshots.size() >= max) {
+      val oldest = snapshots.values().stream().min((a, b) -> Long.compare(a.createdAt, b.createdAt));
+      if (!oldest.isPresent())
+        break;
+      log.debug("Descartando copia de lista de certificados {}.", oldest.get().id);
+      snapshots.remove(oldest.get().id);
+    }
+  }
+
+  private static final class Snapshot {
+    private final String id = UUID.randomUUID().toString();
+    private final long createdAt = System.currentTimeMillis();
+    private final String cpf;
+    private final List<CidDocMilitarDTO> certificados;
+
+    private Snapshot(String cpf, List<CidDocMilitarDTO> certificados) {
+      this.cpf = cpf;
+      this.certificados = certificados;
+    }
+  }
+
+}
@@ -1,41 +1,71 @@
 package br.mil.eb.sermil.assinatura.client.service;
 
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.Authenticator;
-import java.net.InetSocketAddress;
-import java.net.PasswordAuthentication;
-import java.net.Proxy;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpHost;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.core.env.Environment;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import br.mil.eb.sermil.assinatura.client.util.Digests;
 import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PayloadLogger;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
 import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
 import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
 import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
 import br.mil.eb.sermil.assinatura.core.type.Preferences;
 import br.mil.eb.sermil.assinatura.core.type.Preferences.Config;
 import br.mil.eb.sermil.assinatura.core.util.Constants;
-import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
-import br.mil.eb.sermil.assinatura.core.util.JwtTokenUtil;
 import lombok.val;
 import lombok.extern.slf4j.Slf4j;
 
@@ -54,56 +84,175 @@ public class CommunicationService {
 	@Autowired
 	private Messages messages;
 
+	@Autowired
+	private HeadersCache headersCache;
+
+	@Autowired
+	private PayloadLogger payloadLogger;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	@Autowired
+	private Metrics metrics;
+
+	public static final String IDEMPOTENCY_KEY = "Idempotency-Key";
+
+	private final ConcurrentMap<String, RestTemplate> clients = new ConcurrentHashMap<>();
+
+	private volatile String currentProxyKey;
+
+
 	public AssinaturaEntity get(String url, String cpf, Preferences prefs) throws AssinaturaException {
+	  return get(url, cpf, prefs, getRestTemplate(prefs));
+	}
+
+	/**
+	 * GET de teste de conectividade com o cliente de {@link #getProbeRestTemplate(Preferences, int)}: a requisicao termina (e libera
+	 * a thread e a conexao) em ate {@code timeoutMs}, mesmo contra um servidor que aceita a conexao e nunca responde.
+	 */
+	public AssinaturaEntity probe(String url, Preferences prefs, int timeoutMs) throws AssinaturaException {
+	  return get(url, "", prefs, getProbeRestTemplate(prefs, timeoutMs));
+	}
+
+	private AssinaturaEntity get(String url, String cpf, Preferences prefs, RestTemplate client) throws AssinaturaException {
+		val metricStart = System.nanoTime();
 		try {
 			val entity = new HttpEntity<Object>(getHeaders(cpf, prefs));
-			val client = getRestTemplate(prefs);
 			val url2 = getServerUrl(prefs) + url;
 			log.info("Iniciando comunicacao GET com Assinatura Servidor: {}", url2);
+			val start = System.nanoTime();
 			val res = client.exchange(new URI(url2), HttpMethod.GET, entity, AssinaturaEntity.class);
-			log.info("Comunicacao GET com Assinatura Servidor terminada: {}", new ObjectMapper().writeValueAsString(res));
+			payloadLogger.exchange("GET", url2, res, start);
 			return res.getBody();
 		} catch (Throwable e) {
+			metrics.increment("server.request.error", tags("GET", url, prefs));
 			return this.handleException(e);
+		} finally {
+			metrics.record("server.request", metricStart, tags("GET", url, prefs));
 		}
 	}
 
 	public <B> AssinaturaEntity post(B body, String url, String cpf, Preferences prefs) throws AssinaturaException {
+	  return post(body, url, cpf, prefs, null);
+	}
+
+	private <B> AssinaturaEntity post(B body, String url, String cpf, Preferences prefs, String idempotencyKey) throws AssinaturaException {
+	  val metricStart = System.nanoTime();
 	  try {
-	    val entity = new HttpEntity<B>(body, getHeaders(cpf, prefs));
+	    val headers = getHeaders(cpf, prefs);
+	    if (idempotencyKey != null)
+	      headers.set(IDEMPOTENCY_KEY, idempotencyKey);
+	    val entity = new HttpEntity<B>(body, headers);
 	    val client = getRestTemplate(prefs);
 	    val url2 = getServerUrl(prefs) + url;
-			log.info("Iniciando comunicacao GET com Assinatura Servidor: {}", url2);
+			log.info("Iniciando comunicacao POST com Assinatura Servidor: {}", url2);
+			val start = System.nanoTime();
 	    val res = client.postForEntity(new URI(url2), entity, AssinaturaEntity.class);
-			log.info("Comunicacao GET com Assinatura Servidor terminada: {}", new ObjectMapper().writeValueAsString(res));
+			payloadLogger.exchange("POST", url2, res, start);
 	    return res.getBody();
 	  } catch (Throwable e) {
+	    metrics.increment("server.request.error", tags("POST", url, prefs));
 	    return this.handleException(e);
+	  } finally {
+	    metrics.record("server.request", metricStart, tags("POST", url, prefs));
 	  }
 	}
 
+	/**
+	 * RestTemplate reaproveitado por configuracao de proxy/datasource. Cada um tem o seu HttpClient com pool de conexoes
+	 * keep-alive ({@code http.client.max.connections}), evitando novo handshake TCP/TLS a cada chamada ao Sermil, e as credenciais
+	 * do proxy no proprio cliente, sem alterar propriedades nem o {@link java.net.Authenticator} da JVM. O cache e descartado (e os
+	 * pools fechados) quando o proxy e alterado em {@link #setProxy(Optional)}.
+	 */
 	public RestTemplate getRestTemplate(Preferences prefs) {
-	  RestTemplate rt = new RestTemplateBuilder().build();
+	  val key = clientKey(prefs.getConfig());
+	  val cached = clients.get(key);
+	  if (cached != null)
+	    return cached;
+	  // tempo de conexao em http.client.connect.timeout (padrao 10s); leitura sem limite, como antes, salvo se
+	  // http.client.read.timeout for definido
+	  return clients.computeIfAbsent(key, k -> buildRestTemplate(prefs, env.getProperty("http.client.max.connections", Integer.class, 10),
+	      env.getProperty("http.client.connect.timeout", Integer.class, 10000), env.getProperty("http.client.read.timeout", Integer.class, 0),
+	      0));
+	}
+
+	/**
+	 * Cliente dos testes de conectividade, separado do usado nas chamadas reais (o pool delas nunca e ocupado por um teste) e com
+	 * conexao, leitura e espera por conexao do pool ({@code diagnostic.probe.max.connections}) limitadas a {@code timeoutMs}.
+	 */
+	public RestTemplate getProbeRestTemplate(Preferences prefs, int timeoutMs) {
+	  val key = clientKey(prefs.getConfig()) + "|probe|" + timeoutMs;
+	  val cached = clients.get(key);
+	  if (cached != null)
+	    return cached;
+	  return clients.computeIfAbsent(key,
+	      k -> buildRestTemplate(prefs, env.getProperty("diagnostic.probe.max.connections", Integer.class, 2), timeoutMs, timeoutMs, timeoutMs));
+	}
+
+	private RestTemplate buildRestTemplate(Preferences prefs, int maxConnections, int connectTimeout, int readTimeout,
+	    int connectionRequestTimeout) {
+	  log.info("Criando cliente HTTP para o Assinatura Servidor (datasource: {}).", prefs.getConfig().getDataSource());
+	  val connections = new PoolingHttpClientConnectionManager();
+	  connections.setMaxTotal(maxConnections);
+	  connections.setDefaultMaxPerRoute(maxConnections);
+	  val httpClient = HttpClientBuilder.create().setConnectionManager(connections).useSystemProperties();
   	if (prefs.getConfig().getProxy() != null && !StringUtils.isEmpty(prefs.getConfig().getProxy().getAddress())) {
   		prefs.getConfig().getProxy().setAddress(prefs.getConfig().getProxy().getAddress().replace("http://", ""));
-  		val clientHttpReq = new SimpleClientHttpRequestFactory();
-  		val proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(prefs.getConfig().getProxy().getAddress(), Integer.valueOf(prefs.getConfig().getProxy().getPort())));
-  		clientHttpReq.setProxy(proxy);
+  		val proxy = new HttpHost(prefs.getConfig().getProxy().getAddress(), Integer.valueOf(prefs.getConfig().getProxy().getPort()));
+  		httpClient.setProxy(proxy);
   		if (prefs.getConfig().getProxy().isAuthenticated()) {
-  			Authenticator.setDefault(new Authenticator() {
-  				@Override
-  				protected PasswordAuthentication getPasswordAuthentication() {
-  					return new PasswordAuthentication(prefs.getConfig().getProxy().getUser(), prefs.getConfig().getProxy().getPassword().toCharArray());
-  				}
-  			});
+  		  val credentials = new BasicCredentialsProvider();
+  		  credentials.setCredentials(new AuthScope(proxy),
+  		      new UsernamePasswordCredentials(prefs.getConfig().getProxy().getUser(), prefs.getConfig().getProxy().getPassword()));
+  		  httpClient.setDefaultCredentialsProvider(credentials);
   		}
-  		rt.setRequestFactory(clientHttpReq);
-  		return rt;
-  	} else {
-  		return rt;
   	}
+  	val clientHttpReq = new HttpComponentsClientHttpRequestFactory(httpClient.build());
+  	clientHttpReq.setConnectTimeout(connectTimeout);
+  	clientHttpReq.setReadTimeout(readTimeout);
+  	clientHttpReq.setConnectionRequestTimeout(connectionRequestTimeout);
+  	// corpo enviado direto na conexao: o upload do pdf em streaming nao e copiado para um byte[] no heap
+  	clientHttpReq.setBufferRequestBody(false);
+  	RestTemplate rt = new RestTemplateBuilder().build();
+  	rt.setRequestFactory(clientHttpReq);
+  	return rt;
   }
 
+	@PreDestroy
+	private void destroy() {
+	  closeClients();
+	}
+
+	private void closeClients() {
+	  for (val key : clients.keySet()) {
+	    val client = clients.remove(key);
+	    if (client != null && client.getRequestFactory() instanceof DisposableBean) {
+	      try {
+	        ((DisposableBean) client.getRequestFactory()).destroy();
+	      } catch (Exception e) {
+	        log.error("ERRO AO FECHAR O CLIENTE HTTP: {}", e.getMessage());
+	      }
+	    }
+	  }
+	}
+
+	/**
+	 * Identifica a configuracao de rede das preferencias (datasource e proxy, com a senha reduzida a um hash).
+	 */
+	public static String clientKey(Config config) {
+	  return config.getDataSource() + "|" + proxyKey(config);
+	}
+
+	private static String proxyKey(Config config) {
+	  val p = config.getProxy();
+	  if (p == null || StringUtils.isEmpty(p.getAddress()))
+	    return "direct";
+	  return new StringBuilder().append(p.getAddress().replace("http://", "")).append(":").append(p.getPort()).append("|")
+	      .append(p.isAuthenticated()).append("|").append(p.getUser()).append("|")
+	      .append(p.getPassword() == null ? 0 : p.getPassword().hashCode()).toString();
+	}
+
   public byte[] getSignablePdf(final CidDocMilitarDTO dtoCertificate, final String cpf, final Preferences prefs)
 	    throws RestClientException, URISyntaxException, AssinaturaException {
 		dtoCertificate.setAssinado(true);
@@ -114,12 +263,206 @@ public class CommunicationService {
 
   public AssinaturaEntity saveSignedDTOCertificate(final CidDocMilitarDTO signedDTOCertificate, final String cpf, final Preferences prefs)
       throws RestClientException, URISyntaxException, AssinaturaException {
-    return post(AssinaturaEntity.builder().certificado(signedDTOCertificate).build(), "/token/certificate/persistir", cpf, prefs);
+    return saveSignedDTOCertificate(signedDTOCertificate, cpf, prefs, null);
+  }
+
+  /**
+   * Persiste o certificado assinado enviando {@code idempotencyKey} no cabecalho {@value #IDEMPOTENCY_KEY}: a mesma chave e
+   * usada na primeira tentativa e nos reenvios do {@link OfflineJournal}.
+   */
+  public AssinaturaEntity saveSignedDTOCertificate(final CidDocMilitarDTO signedDTOCertificate, final String cpf, final Preferences prefs,
+      final String idempotencyKey) throws AssinaturaException {
+    return post(AssinaturaEntity.builder().certificado(signedDTOCertificate).build(), "/token/certificate/persistir", cpf, prefs,
+        idempotencyKey);
   }
 
+	/**
+	 * Baixa o pdf assinavel direto para um arquivo temporario: o json da resposta e lido em streaming e o campo
+	 * {@code certificado.pdf} (base64) e decodificado para o disco enquanto o SHA-256 e calculado, sem materializar o pdf no heap.
+	 */
+	public PdfFile downloadSignablePdf(final CidDocMilitarDTO dtoCertificate, final String cpf, final Preferences prefs)
+	    throws AssinaturaException {
+	  val tmp = createTempPdf();
+	  try {
+	    dtoCertificate.setAssinado(true);
+	    val client = getRestTemplate(prefs);
+	    val url2 = getServerUrl(prefs) + "/user/certificate/pdf";
+	    log.info("Iniciando download (streaming) do pdf no Assinatura Servidor: {}", url2);
+	    val start = System.nanoTime();
+	    val requestCallback = client.httpEntityCallback(new HttpEntity<>(dtoCertificate, getHeaders(cpf, prefs)));
+	    val pdf = client.execute(new URI(url2), HttpMethod.POST, requestCallback, response -> readPdfField(response.getBody(), tmp));
+	    log.info("Download do pdf terminado: {} bytes={} latencia={}ms", url2, pdf.getSize(), (System.nanoTime() - start) / 1_000_000);
+	    metrics.record("server.request", start, tags("POST", "/user/certificate/pdf", prefs));
+	    return pdf;
+	  } catch (Throwable e) {
+	    metrics.increment("server.request.error", tags("POST", "/user/certificate/pdf", prefs));
+	    deleteQuietly(tmp);
+	    throw new AssinaturaException(this.handleException(e).getErrorMsgs().get(0));
+	  } finally {
+	    dtoCertificate.setAssinado(false);
+	  }
+	}
+
+	/**
+	 * Envia o certificado assinado ao servidor escrevendo o pdf diretamente do arquivo temporario no corpo da requisicao.
+	 */
+	public AssinaturaEntity saveSignedDTOCertificate(final CidDocMilitarDTO signedDTOCertificate, final PdfFile pdf, final String cpf,
+	    final Preferences prefs) throws AssinaturaException {
+	  return saveSignedDTOCertificate(signedDTOCertificate, pdf, cpf, prefs, null);
+	}
+
+	public AssinaturaEntity saveSignedDTOCertificate(final CidDocMilitarDTO signedDTOCertificate, final PdfFile pdf, final String cpf,
+	    final Preferences prefs, final String idempotencyKey) throws AssinaturaException {
+	  try {
+	    val headers = getHeaders(cpf, prefs);
+	    if (idempotencyKey != null)
+	      headers.set(IDEMPOTENCY_KEY, idempotencyKey);
+	    val client = getRestTemplate(prefs);
+	    val url2 = getServerUrl(prefs) + "/token/certificate/persistir";
+	    log.info("Iniciando comunicacao POST (streaming) com Assinatura Servidor: {}", url2);
+	    val start = System.nanoTime();
+	    final ObjectNode tree = objectMapper.valueToTree(AssinaturaEntity.builder().certificado(signedDTOCertificate).build());
+	    // sem buffer (ver buildRestTemplate): o corpo e escrito pelo HttpClient direto na conexao, em blocos (chunked)
+	    RequestCallback requestCallback = request -> {
+	      request.getHeaders().putAll(headers);
+	      if (request instanceof StreamingHttpOutputMessage)
+	        ((StreamingHttpOutputMessage) request).setBody(out -> writeWithPdf(out, tree, pdf));
+	      else
+	        writeWithPdf(request.getBody(), tree, pdf);
+	    };
+	    val res = client.execute(new URI(url2), HttpMethod.POST, requestCallback, client.responseEntityExtractor(AssinaturaEntity.class));
+	    payloadLogger.exchange("POST", url2, res, start);
+	    metrics.record("server.request", start, tags("POST", "/token/certificate/persistir", prefs));
+	    return res.getBody();
+	  } catch (Throwable e) {
+	    metrics.increment("server.request.error", tags("POST", "/token/certificate/persistir", prefs));
+	    return this.handleException(e);
+	  }
+	}
+
+	/**
+	 * Le a lista de {@code /user/certificates} em streaming, entregando cada certificado ao {@code consumer} assim que e
+	 * lido (ver {@link CertificateListReader}). Devolve quantos certificados foram lidos.
+	 */
+	public int readUserCertificates(final String cpf, final Preferences prefs, final Consumer<CidDocMilitarDTO> consumer)
+	    throws AssinaturaException {
+	  try {
+	    val client = getRestTemplate(prefs);
+	    val url2 = getServerUrl(prefs) + "/user/certificates";
+	    log.info("Iniciando leitura (streaming) dos certificados no Assinatura Servidor: {}", url2);
+	    val start = System.nanoTime();
+	    val requestCallback = client.httpEntityCallback(new HttpEntity<>(prefs, getHeaders(cpf, prefs)));
+	    val count = client.execute(new URI(url2), HttpMethod.POST, requestCallback,
+	        response -> new CertificateListReader(objectMapper).read(response.getBody(), consumer));
+	    log.info("Leitura dos certificados terminada: {} certificados={} latencia={}ms", url2, count,
+	        (System.nanoTime() - start) / 1_000_000);
+	    metrics.record("server.request", start, tags("POST", "/user/certificates", prefs));
+	    return count;
+	  } catch (Throwable e) {
+	    metrics.increment("server.request.error", tags("POST", "/user/certificates", prefs));
+	    throw new AssinaturaException(this.handleException(e).getErrorMsgs().get(0));
+	  }
+	}
+
+	private PdfFile readPdfField(InputStream body, Path target) throws IOException {
+	  val digest = Digests.newSha256();
+	  long size = -1;
+	  String errorMsg = null;
+	  try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+	    parser.nextToken();
+	    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+	      val field = parser.getCurrentName();
+	      val token = parser.nextToken();
+	      if ("certificado".equals(field) && token == JsonToken.START_OBJECT) {
+	        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+	          val inner = parser.getCurrentName();
+	          val innerToken = parser.nextToken();
+	          if ("pdf".equals(inner) && innerToken == JsonToken.VALUE_STRING) {
+	            try (OutputStream out = new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(target)), digest)) {
+	              size = parser.readBinaryValue(out);
+	            }
+	          } else
+	            parser.skipChildren();
+	        }
+	      } else if ("errorMsgs".equals(field) && token == JsonToken.START_ARRAY) {
+	        while (parser.nextToken() != JsonToken.END_ARRAY) {
+	          if (errorMsg == null && parser.getCurrentToken() == JsonToken.VALUE_STRING)
+	            errorMsg = parser.getText();
+	          else
+	            parser.skipChildren();
+	        }
+	      } else
+	        parser.skipChildren();
+	    }
+	  }
+	  if (errorMsg != null)
+	    throw new IOException(errorMsg);
+	  if (size < 0)
+	    throw new IOException(messages.get("certificate.pdf.not.found"));
+	  return new PdfFile(target, size, digest.digest());
+	}
+
+	private void writeWithPdf(OutputStream out, ObjectNode tree, PdfFile pdf) throws IOException {
+	  try (JsonGenerator gen = objectMapper.getFactory().createGenerator(out); InputStream in = Files.newInputStream(pdf.getPath())) {
+	    writeWithPdf(gen, tree, in, pdf.getSize());
+	  }
+	}
+
+	private void writeWithPdf(JsonGenerator gen, ObjectNode tree, InputStream pdf, long size) throws IOException {
+	  // o campo base64 do json e escrito com o tamanho em int
+	  if (size > Integer.MAX_VALUE)
+	    throw new IOException("Pdf de " + size + " bytes excede o tamanho maximo de envio (" + Integer.MAX_VALUE + " bytes).");
+	  gen.writeStartObject();
+	  val fields = tree.fields();
+	  while (fields.hasNext()) {
+	    val field = fields.next();
+	    gen.writeFieldName(field.getKey());
+	    if ("certificado".equals(field.getKey()) && field.getValue().isObject()) {
+	      gen.writeStartObject();
+	      val inner = field.getValue().fields();
+	      while (inner.hasNext()) {
+	        val f = inner.next();
+	        if (!"pdf".equals(f.getKey())) {
+	          gen.writeFieldName(f.getKey());
+	          gen.writeTree(f.getValue());
+	        }
+	      }
+	      gen.writeFieldName("pdf");
+	      gen.writeBinary(pdf, (int) size);
+	      gen.writeEndObject();
+	    } else
+	      gen.writeTree(field.getValue());
+	  }
+	  gen.writeEndObject();
+	}
+
+	private Path createTempPdf() throws AssinaturaException {
+	  try {
+	    return Files.createTempFile("assinatura-", ".pdf");
+	  } catch (IOException e) {
+	    throw new AssinaturaException(e.getMessage());
+	  }
+	}
+
+	private static void deleteQuietly(Path path) {
+	  try {
+	    Files.deleteIfExists(path);
+	  } catch (IOException e) {
+	    log.error("NAO FOI POSSIVEL REMOVER O ARQUIVO TEMPORARIO {}: {}", path, e.getMessage());
+	  }
+	}
+
 	public void setProxy(Optional<Config> optional) {
 		if (optional.isPresent() && optional.get().getProxy() != null)
 			setProxy(optional.get().getProxy());
+		if (optional.isPresent()) {
+		  val key = proxyKey(optional.get());
+		  if (!key.equals(currentProxyKey)) {
+		    log.info("Configuracao de proxy alterada, descartando clientes HTTP em cache.");
+		    currentProxyKey = key;
+		    closeClients();
+		  }
+		}
 	}
 
 	private void setProxy(br.mil.eb.sermil.assinatura.core.type.Preferences.Config.Proxy p) {
@@ -137,12 +480,17 @@ public class CommunicationService {
 		val headers = new HttpHeaders();
 		headers.setContentType(MediaType.APPLICATION_JSON);
 		headers.setAccept(Arrays.asList(MediaType.APPLICATION_JSON));
-		headers.set(Constants.TOKEN_NAME, JwtTokenUtil.generateToken(cpf));
-		headers.set(env.getProperty("header.prefs.name"), new ObjectMapper().writeValueAsString(prefs));
-		headers.set(Constants.VERIFICATION_PARAMETER, CryptoUtil.encrypt(Constants.SECRET + CryptoUtil.SALT));
+		headers.set(Constants.TOKEN_NAME, headersCache.getToken(cpf));
+		headers.set(env.getProperty("header.prefs.name"), headersCache.getPreferences(prefs));
+		headers.set(Constants.VERIFICATION_PARAMETER, headersCache.getVerificationParameter());
 		return headers;
 	}
 
+	private static String[] tags(String method, String path, Preferences prefs) {
+	  val dataSource = prefs == null || prefs.getConfig() == null ? "indefinido" : prefs.getConfig().getDataSource();
+	  return new String[] { "method", method, "path", path, "datasource", dataSource };
+	}
+
 	private String getServerUrl(Preferences prefs) throws AssinaturaException {
 		if (prefs.getConfig().getDataSource().equalsIgnoreCase("local"))
 			return env.getProperty("local.server.url");
@@ -152,9 +500,37 @@ public class CommunicationService {
 			throw new AssinaturaException(messages.get("preferences.datasource.not.defined"));
 	}
 
+	/**
+	 * {@code true} quando a resposta foi montada por {@link #handleException(Throwable)} a partir de uma falha de rede (sem rota,
+	 * conexao recusada, reiniciada ou expirada, servidor fora do ar atras do proxy), casos em que a mesma requisicao pode ser
+	 * reenviada mais tarde.
+	 */
+	public boolean isNetworkFailure(AssinaturaEntity ae) {
+	  return ae instanceof NetworkFailure;
+	}
+
+	/**
+	 * Classifica pelo tipo da excecao (e das causas), nao pela mensagem, que depende do idioma e da versao da JVM.
+	 */
+	static boolean isNetworkException(Throwable e) {
+	  for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+	    // SocketException cobre ConnectException, NoRouteToHostException e "Connection reset". ResourceAccessException nao basta:
+	    // o RestTemplate tambem embrulha nela o I/O local do RequestCallback (pdf temporario ilegivel), que nao se resolve reenviando.
+	    // ConnectTimeoutException (HttpClient) estende InterruptedIOException, nao SocketTimeoutException.
+	    if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof ConnectTimeoutException
+	        || t instanceof UnknownHostException)
+	      return true;
+	    if (t instanceof HttpServerErrorException) {
+	      val status = ((HttpServerErrorException) t).getStatusCode();
+	      return status == HttpStatus.BAD_GATEWAY || status == HttpStatus.SERVICE_UNAVAILABLE || status == HttpStatus.GATEWAY_TIMEOUT;
+	    }
+	  }
+	  return false;
+	}
+
 	private AssinaturaEntity handleException(Throwable e) throws AssinaturaException {
 		log.error(e.getMessage());
-		val ae = new AssinaturaEntity();
+		val ae = isNetworkException(e) ? new NetworkFailure() : new AssinaturaEntity();
 		if(e.getClass().getName().equals(AssinaturaException.class.getName()))
 		  ae.addErrorMsg(e.getMessage());
 		else if (StringUtils.isEmpty(e.getMessage()))
@@ -172,4 +548,10 @@ public class CommunicationService {
 		return ae;
 	}
 
+	/**
+	 * Resposta de erro de rede; a marca fica no tipo para que {@link #isNetworkFailure(AssinaturaEntity)} nao dependa do texto.
+	 */
+	private static final class NetworkFailure extends AssinaturaEntity {
+	}
+
 }
@@ -4,6 +4,19 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.apache.commons.io.FileUtils;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -38,24 +51,100 @@ public class DiagnosticService {
   @Autowired
   private CommunicationService commService;
 
+  private ExecutorService probeExecutor;
+
+  /**
+   * Executor limitado ({@code diagnostic.probe.threads}, fila de mesmo tamanho): como cada teste termina no proprio prazo, um
+   * servidor que nao responde nao acumula threads; testes alem da fila sao dados como falha.
+   */
+  @PostConstruct
+  private void init() {
+    val threads = env.getProperty("diagnostic.probe.threads", Integer.class, 4);
+    probeExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(threads), r -> {
+      val t = new Thread(r, "diagnostic-probe");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @PreDestroy
+  private void destroy() {
+    probeExecutor.shutdownNow();
+  }
+
+  /**
+   * Executa os dois testes de conectividade em paralelo; cada um tem seu proprio prazo ({@code diagnostic.serpro.timeout.ms} e
+   * {@code diagnostic.assinatura.timeout.ms}) e o resultado informa a latencia de cada teste.
+   */
   public AssinaturaEntity run(Preferences prefs) {
-    val ae = new AssinaturaEntity();
+    val results = probe(prefs);
+    return toEntity(results[0], results[1]);
+  }
+
+  /**
+   * Resultados dos testes do Serpro e do Assinatura Servidor, nesta ordem.
+   */
+  public ProbeResult[] probe(Preferences prefs) {
     log.debug("begining connection test ...");
-    if (isConnectedToSerpro())
-      ae.addInfoMsg(messages.get("diagnostic.serpro.connection.ok"));
+    val start = System.nanoTime();
+    val serproTimeout = env.getProperty("diagnostic.serpro.timeout.ms", Integer.class, 5000);
+    val assinaturaTimeout = env.getProperty("diagnostic.assinatura.timeout.ms", Integer.class, 5000);
+    val serpro = probe(() -> isConnectedToSerpro(serproTimeout));
+    val assinatura = probe(() -> isConnectedToAssinaturaServer(prefs, assinaturaTimeout));
+    return new ProbeResult[] { await(serpro, start, serproTimeout), await(assinatura, start, assinaturaTimeout) };
+  }
+
+  public AssinaturaEntity toEntity(ProbeResult serpro, ProbeResult assinatura) {
+    val ae = new AssinaturaEntity();
+    if (serpro.isConnected())
+      ae.addInfoMsg(messages.get("diagnostic.serpro.connection.ok") + latency(serpro));
     else
-      ae.addErrorMsg(messages.get("diagnostic.serpro.connection.failure"));
+      ae.addErrorMsg(messages.get("diagnostic.serpro.connection.failure") + latency(serpro));
 
-    if (isConnectedToAssinaturaServer(prefs))
-      ae.addInfoMsg(messages.get("diagnostic.assinatura.server.connection.ok"));
+    if (assinatura.isConnected())
+      ae.addInfoMsg(messages.get("diagnostic.assinatura.server.connection.ok") + latency(assinatura));
     else
-      ae.addErrorMsg(messages.get("diagnostic.assinatura.server.connection.error"));
+      ae.addErrorMsg(messages.get("diagnostic.assinatura.server.connection.error") + latency(assinatura));
 
     return ae;
   }
 
-  private boolean isConnectedToSerpro() {
-    val client = getClient();
+  private Future<ProbeResult> probe(BooleanSupplier test) {
+    try {
+      return probeExecutor.submit(() -> {
+        val start = System.nanoTime();
+        val connected = test.getAsBoolean();
+        return new ProbeResult(connected, false, (System.nanoTime() - start) / 1_000_000, System.currentTimeMillis());
+      });
+    } catch (RejectedExecutionException e) {
+      log.error("TESTES DE CONECTIVIDADE DEMAIS EM ANDAMENTO, TESTE DESCARTADO.");
+      return CompletableFuture.completedFuture(new ProbeResult(false, false, 0, System.currentTimeMillis()));
+    }
+  }
+
+  private ProbeResult await(Future<ProbeResult> probe, long start, long timeoutMs) {
+    try {
+      val remaining = timeoutMs - (System.nanoTime() - start) / 1_000_000;
+      return probe.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      probe.cancel(true);
+      log.error("TESTE DE CONECTIVIDADE EXCEDEU O PRAZO DE {}ms", timeoutMs);
+      return ProbeResult.timeout((System.nanoTime() - start) / 1_000_000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return ProbeResult.timeout((System.nanoTime() - start) / 1_000_000);
+    } catch (ExecutionException e) {
+      log.error("ERRO NO TESTE DE CONECTIVIDADE: {}", e.getMessage());
+      return new ProbeResult(false, false, (System.nanoTime() - start) / 1_000_000, System.currentTimeMillis());
+    }
+  }
+
+  private String latency(ProbeResult result) {
+    return result.isTimedOut() ? " (tempo esgotado apos " + result.getLatencyMs() + " ms)" : " (" + result.getLatencyMs() + " ms)";
+  }
+
+  private boolean isConnectedToSerpro(int timeoutMs) {
+    val client = getClient(timeoutMs);
     val url = env.getProperty("server.serpro.url");
     try {
       val res = client.optionsForAllow(new URI(url));
@@ -68,9 +157,9 @@ public class DiagnosticService {
     }
   }
 
-  private boolean isConnectedToAssinaturaServer(Preferences prefs) {
+  private boolean isConnectedToAssinaturaServer(Preferences prefs, int timeoutMs) {
     try {
-      return this.commService.get("/autoteste", "", prefs).getInfoMsgs().stream()
+      return this.commService.probe("/autoteste", prefs, timeoutMs).getInfoMsgs().stream()
           .filter(msg -> msg.contains(Constants.ASSINATURA_SERVIDOR_FUNCIONANDO)).count() > 0;
     } catch (Exception e) {
       log.error("NAO HA CONEXAO COM O SERVIDOR DO ASSINATURA DIGITAL: " + e.getMessage());
@@ -78,12 +167,12 @@ public class DiagnosticService {
     }
   }
 
-  private RestTemplate getClient() {
+  private RestTemplate getClient(int timeoutMs) {
     val preferences = new Preferences();
     val config = new Preferences.Config();
     config.setDataSource("remote");
     preferences.setConfig(config);
-    val client = this.commService.getRestTemplate(preferences);
+    val client = this.commService.getProbeRestTemplate(preferences, timeoutMs);
     return client;
   }
 
@@ -0,0 +1,147 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import br.mil.eb.sermil.assinatura.core.util.Constants;
+import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
+import br.mil.eb.sermil.assinatura.core.util.JwtTokenUtil;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Valores dos cabecalhos enviados ao Assinatura Servidor que nao mudam a cada requisicao: preferencias serializadas, parametro
+ * de verificacao criptografado e JWT por CPF (renovado {@code header.jwt.skew.seconds} antes do {@code exp} do proprio token,
+ * em um LRU de {@code header.jwt.cache.size} entradas).
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Component
+public class HeadersCache {
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private PreferencesStore preferencesStore;
+
+  private volatile String verificationParameter;
+
+  private Map<String, CachedToken> tokens;
+
+  private volatile CachedPreferences preferences;
+
+  @PostConstruct
+  private void init() {
+    tokens = lru(env.getProperty("header.jwt.cache.size", Integer.class, 256));
+  }
+
+  public String getVerificationParameter() throws UnsupportedEncodingException, GeneralSecurityException {
+    if (verificationParameter == null)
+      verificationParameter = CryptoUtil.encrypt(Constants.SECRET + CryptoUtil.SALT);
+    return verificationParameter;
+  }
+
+  public String getToken(String cpf) {
+    val now = System.currentTimeMillis();
+    synchronized (tokens) {
+      val cached = tokens.get(cpf);
+      if (cached != null && cached.expiresAt > now)
+        return cached.token;
+    }
+    val token = JwtTokenUtil.generateToken(cpf);
+    val cached = new CachedToken(token, expiresAt(token, now));
+    synchronized (tokens) {
+      tokens.put(cpf, cached);
+    }
+    return token;
+  }
+
+  /**
+   * Preferencias serializadas. As do {@link PreferencesStore} sao serializadas uma vez por versao (a versao muda a cada gravacao
+   * ou recarga externa); qualquer outro objeto e serializado na hora, como antes do cache.
+   */
+  public String getPreferences(Preferences prefs) throws JsonProcessingException {
+    if (!preferencesStore.isCurrent(prefs))
+      return objectMapper.writeValueAsString(prefs);
+    val version = preferencesStore.getVersion();
+    val cached = preferences;
+    if (cached != null && cached.prefs == prefs && cached.version == version)
+      return cached.json;
+    val json = objectMapper.writeValueAsString(prefs);
+    preferences = new CachedPreferences(prefs, version, json);
+    return json;
+  }
+
+  /**
+   * Momento de renovar o token: {@code exp} (segundos) da carga util menos {@code header.jwt.skew.seconds}. Sem {@code exp}
+   * legivel, {@code header.jwt.cache.seconds} a partir de agora.
+   */
+  private long expiresAt(String token, long now) {
+    val skew = env.getProperty("header.jwt.skew.seconds", Long.class, 30L) * 1000;
+    try {
+      val parts = token.split("\\.");
+      if (parts.length >= 2) {
+        val exp = objectMapper.readTree(Base64.getUrlDecoder().decode(parts[1])).path("exp");
+        if (exp.canConvertToLong())
+          return exp.asLong() * 1000 - skew;
+      }
+    } catch (Exception e) {
+      log.debug("Expiracao do JWT ilegivel: {}", e.getMessage());
+    }
+    return now + env.getProperty("header.jwt.cache.seconds", Long.class, 60L) * 1000;
+  }
+
+  private static <V> Map<String, V> lru(final int maxEntries) {
+    return new LinkedHashMap<String, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  private static final class CachedPreferences {
+    private final Preferences prefs;
+    private final long version;
+    private final String json;
+
+    private CachedPreferences(Preferences prefs, long version, String json) {
+      this.prefs = prefs;
+      this.version = version;
+      this.json = json;
+    }
+  }
+
+  private static final class CachedToken {
+    private final String token;
+    private final long expiresAt;
+
+    private CachedToken(String token, long expiresAt) {
+      this.token = token;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+}
@@ -0,0 +1,166 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Monitora periodicamente a conectividade com o Serpro e com o Assinatura Servidor ({@code /autoteste}) e guarda o ultimo estado
+ * e o historico de latencias em memoria. O intervalo ({@code health.monitor.interval.ms}) dobra a cada falha ate
+ * {@code health.monitor.max.interval.ms} e volta ao normal quando a conexao e restabelecida.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+@Lazy(false)
+public class HealthMonitorService {
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private DiagnosticService diagnosticService;
+
+  private final AtomicReference<Preferences> preferences = new AtomicReference<>();
+
+  private final AtomicReference<HealthSnapshot> snapshot = new AtomicReference<>();
+
+  private final Deque<ProbeResult> serproHistory = new ArrayDeque<>();
+
+  private final Deque<ProbeResult> assinaturaHistory = new ArrayDeque<>();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    val t = new Thread(r, "health-monitor");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private long interval;
+
+  @PostConstruct
+  private void init() {
+    interval = baseInterval();
+    scheduler.schedule(this::monitor, 0, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void destroy() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Preferencias usadas nos proximos testes do Assinatura Servidor (datasource e proxy do usuario). Ate que sejam informadas os
+   * testes usam o servidor remoto.
+   */
+  public void setPreferences(Preferences prefs) {
+    if (prefs == null || prefs.getConfig() == null)
+      return;
+    val previous = preferences.getAndSet(prefs);
+    if (previous == null || !Objects.equals(configKey(prefs), configKey(previous)))
+      scheduler.execute(this::check);
+  }
+
+  /**
+   * Diagnostico a partir do ultimo estado conhecido; executa os testes na hora quando o ultimo teste nao foi feito com o
+   * datasource e o proxy das preferencias.
+   */
+  public AssinaturaEntity diagnostic(Preferences prefs) {
+    val current = snapshot.get();
+    if (current != null && matches(current, prefs))
+      return diagnosticService.toEntity(current.getSerpro(), current.getAssinatura());
+    setPreferences(prefs);
+    return diagnosticService.run(prefs);
+  }
+
+  public HealthSnapshot getSnapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * {@code true} somente quando o ultimo teste, feito com o datasource e o proxy de {@code prefs} ha menos de
+   * {@code health.monitor.failfast.max.age.ms}, indicou que o Assinatura Servidor esta inacessivel. Sem informacao recente nao
+   * bloqueia e pede um novo teste.
+   */
+  public boolean isAssinaturaServerDown(Preferences prefs) {
+    val current = snapshot.get();
+    if (current == null || current.getAssinatura() == null || current.getAssinatura().isConnected())
+      return false;
+    val maxAge = env.getProperty("health.monitor.failfast.max.age.ms", Long.class, baseInterval());
+    if (matches(current, prefs) && System.currentTimeMillis() - current.getCheckedAt() <= maxAge)
+      return true;
+    if (matches(current, prefs))
+      scheduler.execute(this::check);
+    return false;
+  }
+
+  private void monitor() {
+    try {
+      val ok = check();
+      interval = ok ? baseInterval() : Math.min(interval * 2, env.getProperty("health.monitor.max.interval.ms", Long.class, 300000L));
+    } catch (Exception e) {
+      log.error("ERRO NO MONITORAMENTO DE CONECTIVIDADE: {}", e.getMessage());
+    } finally {
+      if (!scheduler.isShutdown())
+        scheduler.schedule(this::monitor, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private synchronized boolean check() {
+    val prefs = preferences.get() != null ? preferences.get() : remotePreferences();
+    val results = diagnosticService.probe(prefs);
+    record(serproHistory, results[0]);
+    record(assinaturaHistory, results[1]);
+    snapshot.set(new HealthSnapshot(prefs.getConfig().getDataSource(), configKey(prefs), System.currentTimeMillis(), results[0],
+        results[1], new ArrayList<>(serproHistory), new ArrayList<>(assinaturaHistory)));
+    return results[0].isConnected() && results[1].isConnected();
+  }
+
+  private void record(Deque<ProbeResult> history, ProbeResult result) {
+    history.addLast(result);
+    while (history.size() > env.getProperty("health.monitor.history.size", Integer.class, 20))
+      history.removeFirst();
+  }
+
+  private long baseInterval() {
+    return env.getProperty("health.monitor.interval.ms", Long.class, 30000L);
+  }
+
+  private static boolean matches(HealthSnapshot current, Preferences prefs) {
+    return current.getConfigKey() != null && current.getConfigKey().equals(configKey(prefs));
+  }
+
+  private static String configKey(Preferences prefs) {
+    return prefs == null || prefs.getConfig() == null || prefs.getConfig().getDataSource() == null ? null
+        : CommunicationService.clientKey(prefs.getConfig());
+  }
+
+  private static Preferences remotePreferences() {
+    val preferences = new Preferences();
+    val config = new Preferences.Config();
+    config.setDataSource("remote");
+    preferences.setConfig(config);
+    return preferences;
+  }
+
+}
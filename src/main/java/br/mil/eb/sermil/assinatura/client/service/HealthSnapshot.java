@@ -0,0 +1,37 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.List;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Ultimo estado de conectividade conhecido pelo {@link HealthMonitorService}, com o historico recente de cada teste.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class HealthSnapshot {
+
+  private final String dataSource;
+
+  /** Datasource e proxy testados ({@link CommunicationService#clientKey}). */
+  @JsonIgnore
+  private final String configKey;
+
+  private final long checkedAt;
+
+  private final ProbeResult serpro;
+
+  private final ProbeResult assinatura;
+
+  private final List<ProbeResult> serproHistory;
+
+  private final List<ProbeResult> assinaturaHistory;
+
+}
@@ -0,0 +1,86 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.demoiselle.signer.policy.engine.factory.PolicyFactory.Policies;
+import org.demoiselle.signer.policy.impl.cades.SignerAlgorithmEnum;
+import org.demoiselle.signer.policy.impl.cades.factory.PKCS7Factory;
+import org.demoiselle.signer.policy.impl.cades.pkcs7.PKCS7Signer;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.val;
+
+/**
+ * Sessao aberta no token para um alias: o KeyStore carregado, a cadeia de certificados e um {@link PKCS7Signer} pronto para uso.
+ * Mantida em cache pelo {@link TokenService} ate que o token seja removido ou atualizado.
+ * <p>
+ * Com keystore em software (PKCS#12) a chave privada ja esta desbloqueada em memoria e a sessao mantem um conjunto fixo de
+ * signers, entregues em rodizio, permitindo assinaturas simultaneas; no token (A3) o signer e unico e as operacoes sao
+ * serializadas. Os signers (e com eles a chave privada) pertencem a sessao: {@link #close()} os descarta, sem deixar copias nas
+ * threads que assinaram.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+public final class KeyStoreSession {
+
+  private final String alias;
+
+  private final KeyStore keyStore;
+
+  private final Certificate[] certificateChain;
+
+  @Getter(AccessLevel.NONE)
+  private final AtomicReferenceArray<PKCS7Signer> signers;
+
+  @Getter(AccessLevel.NONE)
+  private final AtomicInteger next = new AtomicInteger();
+
+  /**
+   * @param signers quantos signers a sessao mantem (1 no token; {@link TokenService#getSigningThreads()} no modo PKCS#12)
+   */
+  public KeyStoreSession(String alias, KeyStore keyStore, Certificate[] certificateChain, PrivateKey privateKey, int signers) {
+    this.alias = alias;
+    this.keyStore = keyStore;
+    this.certificateChain = certificateChain;
+    this.signers = new AtomicReferenceArray<>(Math.max(1, signers));
+    for (int i = 0; i < this.signers.length(); i++)
+      this.signers.set(i, newSigner(privateKey));
+  }
+
+  /**
+   * Proximo signer da sessao, em rodizio. Um mesmo signer pode ser entregue a duas threads: o {@link TokenService} serializa as
+   * operacoes em cada signer.
+   */
+  public PKCS7Signer getSigner() {
+    val signer = signers.get(Math.floorMod(next.getAndIncrement(), signers.length()));
+    if (signer == null)
+      throw new IllegalStateException("Sessao do certificado " + alias + " encerrada.");
+    return signer;
+  }
+
+  /**
+   * Descarta os signers da sessao (token removido, atualizado ou sessao substituida).
+   */
+  public void close() {
+    for (int i = 0; i < signers.length(); i++)
+      signers.set(i, null);
+  }
+
+  private PKCS7Signer newSigner(PrivateKey privateKey) {
+    val signer = PKCS7Factory.getInstance().factoryDefault();
+    signer.setCertificates(certificateChain);
+    signer.setPrivateKey(privateKey);
+    signer.setSignaturePolicy(Policies.AD_RB_CADES_2_2);
+    signer.setAlgorithm(SignerAlgorithmEnum.SHA256withRSA);
+    return signer;
+  }
+
+}
@@ -0,0 +1,360 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Diario local dos certificados assinados que nao puderam ser persistidos no Sermil por falha de rede. Cada certificado e gravado
+ * em {@code journal.dir} (pdf, assinatura p7s e metadados, com fsync e rename atomico) e registrado no arquivo append-only
+ * {@code journal.log} ({@code ADD}, depois {@code DONE} ou {@code FAIL}); na inicializacao o log e reaplicado e os pendentes voltam
+ * para a fila.
+ * <p>
+ * Um uploader em segundo plano reenvia os pendentes, em ordem, para {@code /token/certificate/persistir} com a mesma chave de
+ * idempotencia da primeira tentativa. Enquanto a rede falhar o intervalo entre tentativas dobra, de {@code journal.retry.initial.ms}
+ * ate {@code journal.retry.max.ms}; recusas do servidor (erros que nao sao de rede) e entradas ilegiveis vao para
+ * {@code journal.dir/failed} e sao listadas por {@link #getFailed()} (endpoint {@code /journal/status}).
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+@Lazy(false)
+public class OfflineJournal {
+
+  private static final String LOG = "journal.log";
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private CommunicationService communicationService;
+
+  @Autowired
+  private Metrics metrics;
+
+  private final Map<String, ObjectNode> pending = new LinkedHashMap<>();
+
+  private final ScheduledExecutorService uploader = Executors.newSingleThreadScheduledExecutor(r -> {
+    val t = new Thread(r, "journal-uploader");
+    t.setDaemon(true);
+    return t;
+  });
+
+  private Path dir;
+
+  private FileChannel journal;
+
+  private ScheduledFuture<?> nextUpload;
+
+  private volatile long backoff;
+
+  @PostConstruct
+  private void init() throws IOException {
+    if (!isEnabled())
+      return;
+    dir = Paths.get(env.getProperty("journal.dir", System.getProperty("user.home") + "/.assinatura/journal")).toAbsolutePath();
+    Files.createDirectories(dir);
+    replay();
+    journal = FileChannel.open(dir.resolve(LOG), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    backoff = initialBackoff();
+    if (!pending.isEmpty()) {
+      log.info("{} certificado(s) assinado(s) aguardando envio ao Assinatura Servidor.", pending.size());
+      schedule(0);
+    }
+    val failed = getFailedCount();
+    if (failed > 0)
+      log.warn("{} CERTIFICADO(S) DO DIARIO LOCAL RECUSADO(S) PELO ASSINATURA SERVIDOR EM {}.", failed, dir.resolve("failed"));
+  }
+
+  @PreDestroy
+  private void destroy() throws IOException {
+    uploader.shutdownNow();
+    if (journal != null)
+      journal.close();
+  }
+
+  public boolean isEnabled() {
+    return env.getProperty("journal.enabled", Boolean.class, true);
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Ids dos certificados recusados pelo servidor no reenvio; continuam em {@code journal.dir/failed} ate alguem trata-los.
+   */
+  public List<String> getFailed() throws IOException {
+    val failed = dir == null ? null : dir.resolve("failed");
+    if (failed == null || !Files.isDirectory(failed))
+      return Collections.emptyList();
+    try (Stream<Path> files = Files.list(failed)) {
+      return files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".json"))
+          .map(name -> name.substring(0, name.length() - ".json".length())).sorted().collect(Collectors.toList());
+    }
+  }
+
+  public int getFailedCount() throws IOException {
+    return getFailed().size();
+  }
+
+  public void append(final CidDocMilitarDTO signedDTOCertificate, final byte[] pdf, final String cpf, final Preferences prefs,
+      final String idempotencyKey) throws IOException {
+    append(signedDTOCertificate, new ByteArrayInputStream(pdf), cpf, prefs, idempotencyKey);
+  }
+
+  public void append(final CidDocMilitarDTO signedDTOCertificate, final PdfFile pdf, final String cpf, final Preferences prefs,
+      final String idempotencyKey) throws IOException {
+    try (InputStream in = Files.newInputStream(pdf.getPath())) {
+      append(signedDTOCertificate, in, cpf, prefs, idempotencyKey);
+    }
+  }
+
+  /**
+   * Grava o certificado assinado no diario; ao retornar, pdf, assinatura e metadados ja estao no disco.
+   */
+  private void append(final CidDocMilitarDTO signedDTOCertificate, final InputStream pdf, final String cpf, final Preferences prefs,
+      final String id) throws IOException {
+    val pdfSize = writeDurably(dir.resolve(id + ".pdf"), pdf);
+    writeDurably(dir.resolve(id + ".p7s"), new ByteArrayInputStream(signedDTOCertificate.getAssinatura()));
+
+    final ObjectNode certificado = objectMapper.valueToTree(signedDTOCertificate);
+    certificado.remove("pdf");
+    certificado.remove("assinatura");
+    certificado.remove("image");
+    val meta = objectMapper.createObjectNode();
+    meta.put("id", id);
+    meta.put("cpf", cpf);
+    meta.put("createdAt", System.currentTimeMillis());
+    meta.put("pdfSize", pdfSize);
+    meta.set("certificado", certificado);
+    meta.set("preferences", objectMapper.valueToTree(protect(prefs)));
+    writeDurably(dir.resolve(id + ".json"), new ByteArrayInputStream(objectMapper.writeValueAsBytes(meta)));
+
+    synchronized (this) {
+      record("ADD", id);
+      pending.put(id, meta);
+      if (nextUpload == null || nextUpload.isDone())
+        schedule(backoff);
+    }
+    metrics.increment("journal.append");
+    log.warn("Certificado RA {} guardado no diario local para reenvio ({} pendente(s)).", signedDTOCertificate.getRa(),
+        getPendingCount());
+  }
+
+  private void upload() {
+    val ids = snapshotIds();
+    for (val id : ids) {
+      final ObjectNode meta;
+      synchronized (this) {
+        meta = pending.get(id);
+      }
+      if (meta == null)
+        continue;
+      try {
+        final CidDocMilitarDTO certificado;
+        final Preferences prefs;
+        final PdfFile pdf;
+        try {
+          certificado = objectMapper.treeToValue(meta.get("certificado"), CidDocMilitarDTO.class);
+          certificado.setAssinatura(Files.readAllBytes(dir.resolve(id + ".p7s")));
+          prefs = unprotect(objectMapper.treeToValue(meta.get("preferences"), Preferences.class));
+          pdf = new PdfFile(dir.resolve(id + ".pdf"), meta.get("pdfSize").asLong(), null);
+        } catch (Exception e) {
+          // entrada ilegivel (metadados corrompidos, p7s ausente, senha que nao decifra): nenhuma nova tentativa a recupera, e
+          // reagenda-la prenderia a fila inteira atras dela
+          log.error("CERTIFICADO {} DO DIARIO LOCAL ILEGIVEL, MOVIDO PARA failed/: {}", id, e.getMessage());
+          complete(id, "FAIL");
+          continue;
+        }
+        val start = System.nanoTime();
+        val ae = communicationService.saveSignedDTOCertificate(certificado, pdf, meta.get("cpf").asText(), prefs, id);
+        metrics.record("journal.upload", start);
+        if (communicationService.isNetworkFailure(ae)) {
+          backoff = Math.min(backoff * 2, env.getProperty("journal.retry.max.ms", Long.class, 300000L));
+          log.info("Assinatura Servidor ainda inacessivel, nova tentativa em {}ms.", backoff);
+          schedule(backoff);
+          return;
+        }
+        if (ae.getErrorMsgs() != null && ae.getErrorMsgs().size() > 0) {
+          log.error("ASSINATURA SERVIDOR RECUSOU O CERTIFICADO RA {} DO DIARIO LOCAL: {}", certificado.getRa(), ae.getErrorMsgs());
+          complete(id, "FAIL");
+        } else {
+          log.info("Certificado RA {} do diario local persistido no Assinatura Servidor.", certificado.getRa());
+          complete(id, "DONE");
+        }
+      } catch (IOException | AssinaturaException e) {
+        // falha ao registrar o resultado no proprio diario (disco): a entrada continua pendente
+        log.error("ERRO AO REENVIAR O CERTIFICADO {} DO DIARIO LOCAL: {}", id, e.getMessage());
+        backoff = Math.min(backoff * 2, env.getProperty("journal.retry.max.ms", Long.class, 300000L));
+        schedule(backoff);
+        return;
+      }
+    }
+    backoff = initialBackoff();
+    synchronized (this) {
+      if (!pending.isEmpty())
+        schedule(0);
+      else
+        compact();
+    }
+  }
+
+  private synchronized ArrayList<String> snapshotIds() {
+    return new ArrayList<>(pending.keySet());
+  }
+
+  private synchronized void complete(final String id, final String status) throws IOException {
+    record(status, id);
+    pending.remove(id);
+    if ("DONE".equals(status)) {
+      for (val ext : new String[] { ".pdf", ".p7s", ".json" })
+        Files.deleteIfExists(dir.resolve(id + ext));
+      metrics.increment("journal.uploaded");
+    } else {
+      val failed = Files.createDirectories(dir.resolve("failed"));
+      for (val ext : new String[] { ".pdf", ".p7s", ".json" })
+        if (Files.exists(dir.resolve(id + ext)))
+          Files.move(dir.resolve(id + ext), failed.resolve(id + ext), StandardCopyOption.REPLACE_EXISTING);
+      metrics.increment("journal.rejected");
+    }
+  }
+
+  private void record(final String status, final String id) throws IOException {
+    val buffer = ByteBuffer.wrap((status + " " + id + "\n").getBytes(StandardCharsets.US_ASCII));
+    while (buffer.hasRemaining())
+      journal.write(buffer);
+    journal.force(false);
+  }
+
+  /**
+   * Reaplica o log: um id com {@code ADD} e sem {@code DONE}/{@code FAIL} posterior continua pendente.
+   */
+  private void replay() throws IOException {
+    val file = dir.resolve(LOG);
+    if (!Files.exists(file))
+      return;
+    for (val line : Files.readAllLines(file, StandardCharsets.US_ASCII)) {
+      val parts = line.trim().split(" ");
+      if (parts.length != 2)
+        continue;
+      if ("ADD".equals(parts[0])) {
+        val meta = dir.resolve(parts[1] + ".json");
+        if (Files.exists(meta))
+          pending.put(parts[1], (ObjectNode) objectMapper.readTree(Files.readAllBytes(meta)));
+        else
+          log.error("METADADOS DO CERTIFICADO {} DO DIARIO LOCAL NAO ENCONTRADOS.", parts[1]);
+      } else
+        pending.remove(parts[1]);
+    }
+    if (pending.isEmpty())
+      Files.delete(file);
+  }
+
+  /**
+   * Sem pendentes o log so tem registros encerrados e pode ser truncado.
+   */
+  private void compact() {
+    try {
+      journal.truncate(0);
+      journal.force(true);
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL COMPACTAR O DIARIO LOCAL: {}", e.getMessage());
+    }
+  }
+
+  private synchronized void schedule(final long delay) {
+    if (!uploader.isShutdown())
+      nextUpload = uploader.schedule(this::upload, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private long initialBackoff() {
+    return env.getProperty("journal.retry.initial.ms", Long.class, 5000L);
+  }
+
+  private long writeDurably(final Path target, final InputStream in) throws IOException {
+    val tmp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+    try {
+      val size = Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        channel.force(true);
+      }
+      try {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      return size;
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Copia das preferencias com a senha do proxy cifrada, como no arquivo de preferencias.
+   */
+  private Preferences protect(final Preferences prefs) throws IOException {
+    val copy = objectMapper.convertValue(prefs, Preferences.class);
+    try {
+      if (copy.getConfig() != null && copy.getConfig().getProxy() != null && !StringUtils.isEmpty(copy.getConfig().getProxy().getPassword()))
+        copy.getConfig().getProxy().setPassword(CryptoUtil.encrypt(copy.getConfig().getProxy().getPassword()));
+    } catch (Exception e) {
+      throw new IOException(e.getMessage(), e);
+    }
+    return copy;
+  }
+
+  private Preferences unprotect(final Preferences prefs) throws Exception {
+    if (prefs.getConfig() != null && prefs.getConfig().getProxy() != null && !StringUtils.isEmpty(prefs.getConfig().getProxy().getPassword()))
+      prefs.getConfig().getProxy().setPassword(CryptoUtil.decrypt(prefs.getConfig().getProxy().getPassword()));
+    return prefs;
+  }
+
+}
@@ -0,0 +1,264 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Preferencias do usuario mantidas em memoria. O arquivo {@code application.preferences.file} e lido uma unica vez; as
+ * alteracoes sao gravadas em segundo plano (arquivo temporario + rename atomico) e alteracoes externas no arquivo sao detectadas
+ * por um {@link WatchService} e recarregadas.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class PreferencesStore {
+
+  private static final int OWN_WRITES = 4;
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  private final AtomicReference<Preferences> current = new AtomicReference<>();
+
+  private final AtomicReference<Preferences> pending = new AtomicReference<>();
+
+  /**
+   * Incrementada sempre que as preferencias em memoria sao trocadas (gravacao ou recarga externa); usada pelo
+   * {@link HeadersCache} para reaproveitar a serializacao.
+   */
+  private final AtomicLong version = new AtomicLong();
+
+  private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+    val t = new Thread(r, "preferences-writer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * SHA-256 das ultimas gravacoes feitas por este processo, registrado antes do rename: o monitor compara o conteudo do arquivo
+   * com ele e nao confunde a propria gravacao (nem uma anterior ainda no disco) com uma alteracao externa.
+   */
+  private final Deque<String> ownWrites = new ArrayDeque<>();
+
+  private WatchService watchService;
+
+  private Path file;
+
+  @PostConstruct
+  private void init() {
+    file = Paths.get(env.getProperty("application.preferences.file", System.getProperty("user.home") + "/.assinatura/preferences.json"))
+        .toAbsolutePath();
+    watch();
+  }
+
+  /**
+   * A gravacao agendada (ainda na fila ou em andamento) termina antes da saida, esperando no maximo
+   * {@code application.preferences.shutdown.timeout.ms}.
+   */
+  @PreDestroy
+  private void destroy() {
+    writer.shutdown();
+    try {
+      val timeout = env.getProperty("application.preferences.shutdown.timeout.ms", Long.class, 5000L);
+      if (!writer.awaitTermination(timeout, TimeUnit.MILLISECONDS))
+        log.error("GRAVACAO DO ARQUIVO DE PREFERENCIAS NAO TERMINOU ANTES DO ENCERRAMENTO: {}", file);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    try {
+      if (watchService != null)
+        watchService.close();
+    } catch (IOException e) {
+      log.error("ERRO AO ENCERRAR O MONITORAMENTO DO ARQUIVO DE PREFERENCIAS: {}", e.getMessage());
+    }
+  }
+
+  /**
+   * Preferencias em memoria. Na primeira chamada le o arquivo; se ele nao existir ou estiver incompleto, {@code defaults} passa a
+   * ser a preferencia atual e e gravada. Devolve a propria instancia em memoria, sem copia: quem precisar altera-la deve passar
+   * uma nova por {@link #save(Preferences)}.
+   */
+  public Preferences load(Preferences defaults) throws IOException, GeneralSecurityException {
+    if (current.get() == null) {
+      synchronized (this) {
+        if (current.get() == null) {
+          val fromFile = Files.exists(file) ? read() : null;
+          if (fromFile == null || fromFile.getConfig() == null || fromFile.getFilter() == null)
+            save(defaults);
+          else
+            replace(fromFile);
+        }
+      }
+    }
+    return current.get();
+  }
+
+  /**
+   * Atualiza as preferencias em memoria e agenda a gravacao. Gravacoes em sequencia sao agrupadas: somente a ultima e escrita.
+   */
+  public void save(Preferences prefs) {
+    replace(copy(prefs));
+    if (pending.getAndSet(copy(prefs)) == null) {
+      try {
+        writer.execute(this::flush);
+      } catch (RejectedExecutionException e) {
+        // encerrando: grava na propria thread
+        flush();
+      }
+    }
+  }
+
+  public long getVersion() {
+    return version.get();
+  }
+
+  /**
+   * {@code true} se {@code prefs} e a propria instancia em memoria (e nao uma copia ou o corpo de uma requisicao).
+   */
+  public boolean isCurrent(Preferences prefs) {
+    return prefs != null && prefs == current.get();
+  }
+
+  private void replace(Preferences prefs) {
+    current.set(prefs);
+    version.incrementAndGet();
+  }
+
+  private void flush() {
+    val prefs = pending.getAndSet(null);
+    if (prefs == null)
+      return;
+    try {
+      if (prefs.getConfig() != null && prefs.getConfig().getProxy() != null
+          && !StringUtils.isEmpty(prefs.getConfig().getProxy().getPassword()))
+        prefs.getConfig().getProxy().setPassword(CryptoUtil.encrypt(prefs.getConfig().getProxy().getPassword()));
+      Files.createDirectories(file.getParent());
+      val content = objectMapper.writeValueAsBytes(prefs);
+      val tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+      Files.write(tmp, content);
+      remember(Digests.toHex(Digests.sha256(content)));
+      try {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+      log.info("Arquivo de preferencias gravado: {}", file);
+    } catch (Exception e) {
+      log.error("NAO FOI POSSIVEL GRAVAR O ARQUIVO DE PREFERENCIAS: {}", e.getMessage());
+    }
+  }
+
+  private void remember(final String hash) {
+    synchronized (ownWrites) {
+      ownWrites.addLast(hash);
+      while (ownWrites.size() > OWN_WRITES)
+        ownWrites.removeFirst();
+    }
+  }
+
+  private boolean isOwnWrite(final String hash) {
+    synchronized (ownWrites) {
+      return ownWrites.contains(hash);
+    }
+  }
+
+  private Preferences read() throws IOException, GeneralSecurityException {
+    return read(Files.readAllBytes(file));
+  }
+
+  private Preferences read(final byte[] content) throws IOException, GeneralSecurityException {
+    Preferences prefs = objectMapper.readValue(content, Preferences.class);
+    if (prefs.getConfig() != null && prefs.getConfig().getProxy() != null
+        && !StringUtils.isEmpty(prefs.getConfig().getProxy().getPassword()))
+      prefs.getConfig().getProxy().setPassword(CryptoUtil.decrypt(prefs.getConfig().getProxy().getPassword()));
+    return prefs;
+  }
+
+  private void watch() {
+    try {
+      Files.createDirectories(file.getParent());
+      watchService = file.getFileSystem().newWatchService();
+      file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (Exception e) {
+      log.error("NAO FOI POSSIVEL MONITORAR O ARQUIVO DE PREFERENCIAS: {}", e.getMessage());
+      return;
+    }
+    val watcher = new Thread(() -> {
+      try {
+        while (true) {
+          val key = watchService.take();
+          val changed = key.pollEvents().stream().anyMatch(event -> file.getFileName().equals(event.context()));
+          key.reset();
+          if (changed)
+            reloadIfExternal();
+        }
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        log.debug("Monitoramento do arquivo de preferencias encerrado.");
+      }
+    }, "preferences-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+  }
+
+  private void reloadIfExternal() {
+    try {
+      if (!Files.exists(file))
+        return;
+      val content = Files.readAllBytes(file);
+      val hash = Digests.toHex(Digests.sha256(content));
+      if (isOwnWrite(hash))
+        return;
+      val fromFile = read(content);
+      if (fromFile != null && fromFile.getConfig() != null && fromFile.getFilter() != null) {
+        replace(fromFile);
+        remember(hash);
+        log.info("Arquivo de preferencias alterado externamente, preferencias recarregadas.");
+      }
+    } catch (Exception e) {
+      log.error("NAO FOI POSSIVEL RECARREGAR O ARQUIVO DE PREFERENCIAS: {}", e.getMessage());
+    }
+  }
+
+  private Preferences copy(Preferences prefs) {
+    return prefs == null ? null : objectMapper.convertValue(prefs, Preferences.class);
+  }
+
+}
@@ -0,0 +1,29 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Resultado de um teste de conectividade do {@link DiagnosticService}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class ProbeResult {
+
+  private final boolean connected;
+
+  private final boolean timedOut;
+
+  private final long latencyMs;
+
+  private final long timestamp;
+
+  public static ProbeResult timeout(long latencyMs) {
+    return new ProbeResult(false, true, latencyMs, System.currentTimeMillis());
+  }
+
+}
@@ -0,0 +1,104 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pdfs assinados no modo streaming ({@code application.pdf.streaming}), em que o certificado devolvido ao navegador nao carrega o
+ * pdf: uma copia fica em {@code application.pdf.download.dir} (padrao: pasta temporaria) por
+ * {@code application.pdf.download.ttl.minutes} para que {@code /certificate/download} a envie direto do disco. As copias sao
+ * removidas ao encerrar.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class SignedPdfStore {
+
+  @Autowired
+  private Environment env;
+
+  /**
+   * Guarda uma copia do pdf assinado de (RA, tipo), substituindo a anterior.
+   */
+  public void keep(final CidDocMilitarDTO signedDTOCertificate, final PdfFile pdf) {
+    try {
+      expire();
+      val target = path(signedDTOCertificate);
+      Files.createDirectories(target.getParent());
+      Files.copy(pdf.getPath(), target, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL GUARDAR O PDF ASSINADO DO RA {} PARA DOWNLOAD: {}", signedDTOCertificate.getRa(), e.getMessage());
+    }
+  }
+
+  /**
+   * Copia do pdf assinado de (RA, tipo), ou {@code null} se nao houver ou ja tiver expirado.
+   */
+  public Path locate(final CidDocMilitarDTO certificado) throws IOException {
+    val file = path(certificado);
+    if (!Files.isRegularFile(file) || isExpired(file))
+      return null;
+    return file;
+  }
+
+  @PreDestroy
+  private void destroy() {
+    deleteAll(true);
+  }
+
+  private void expire() {
+    deleteAll(false);
+  }
+
+  private void deleteAll(final boolean all) {
+    val dir = dir();
+    if (!Files.isDirectory(dir))
+      return;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.pdf")) {
+      for (val file : files)
+        if (all || isExpired(file))
+          Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL REMOVER PDFS ASSINADOS EXPIRADOS: {}", e.getMessage());
+    }
+  }
+
+  private boolean isExpired(final Path file) throws IOException {
+    val ttl = env.getProperty("application.pdf.download.ttl.minutes", Long.class, 60L) * 60_000;
+    return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > ttl;
+  }
+
+  private Path dir() {
+    return Paths.get(env.getProperty("application.pdf.download.dir", System.getProperty("java.io.tmpdir") + "/assinatura-assinados"));
+  }
+
+  /**
+   * RA e tipo vem do corpo da requisicao: apenas letras e digitos entram no nome do arquivo.
+   */
+  private Path path(final CidDocMilitarDTO certificado) {
+    return dir().resolve(safe(certificado.getRa()) + "-" + safe(certificado.getTipo()) + ".pdf");
+  }
+
+  private static String safe(final Object value) {
+    return String.valueOf(value).replaceAll("[^0-9A-Za-z]", "_");
+  }
+
+}
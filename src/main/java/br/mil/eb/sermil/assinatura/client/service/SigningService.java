@@ -0,0 +1,418 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.demoiselle.signer.policy.impl.cades.pkcs7.PKCS7Signer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fluxo de assinatura de certificados: gerar pdf no Sermil, assinar no token, persistir no Sermil e guardar copia local.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class SigningService {
+
+  private static final long STAGE_POLL_MS = 100;
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private CommunicationService communicationService;
+
+  @Autowired
+  private TokenService tokenService;
+
+  @Autowired
+  private CertificateImageCache certificateImageCache;
+
+  @Autowired
+  private OfflineJournal offlineJournal;
+
+  @Autowired
+  private ArchiveWriter archiveWriter;
+
+  @Autowired
+  private SignedPdfStore signedPdfStore;
+
+  @Autowired
+  private Messages messages;
+
+  /**
+   * Threads dos estagios de busca e assinatura do pipeline, separadas do {@code serverCallExecutor}: o lote que espera pelos
+   * estagios roda nele, e estagios na mesma fila poderiam nunca ser atendidos.
+   */
+  private ExecutorService pipelineExecutor;
+
+  @PostConstruct
+  private void init() {
+    val threads = env.getProperty("assinatura.pipeline.fetch.threads", Integer.class, 2) + tokenService.getSigningThreads();
+    val counter = new AtomicInteger();
+    pipelineExecutor = Executors.newFixedThreadPool(threads, r -> {
+      val t = new Thread(r, "assinatura-pipeline-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @PreDestroy
+  private void destroy() {
+    pipelineExecutor.shutdownNow();
+  }
+
+  /**
+   * Assinatura de um certificado: o SHA-256 do pdf e calculado e assinado com a sessao do token em cache.
+   */
+  public AssinaturaEntity sign(final CidDocMilitarDTO notSignedDTOCertificate, final String alias, final String cpf,
+      final Preferences prefs) throws Exception {
+    // certificado vencido e recusado antes de gerar o pdf no Sermil
+    tokenService.checkValidity(alias);
+    if (env.getProperty("application.pdf.streaming", Boolean.class, false))
+      return withArchiveFailures(signStreaming(notSignedDTOCertificate, tokenService.getSigner(alias), cpf, prefs));
+
+    // SERMIL - gerar pdf
+    val pdf = communicationService.getSignablePdf(notSignedDTOCertificate, cpf, prefs);
+    notSignedDTOCertificate.setPdf(pdf);
+
+    // LOCAL - assinar o resumo do pdf
+    val sha256 = Digests.sha256(pdf);
+    val signer = tokenService.getSigner(alias);
+    val signedDTOCertificate = tokenService.signDTOCertificate(notSignedDTOCertificate, sha256, signer);
+
+    // SERMIL - persistir pdf e assinatura
+    return withArchiveFailures(persist(signedDTOCertificate, cpf, prefs));
+  }
+
+  public AssinaturaEntity sign(final CidDocMilitarDTO notSignedDTOCertificate, final PKCS7Signer signer, final String cpf,
+      final Preferences prefs) throws Exception {
+    if (env.getProperty("application.pdf.streaming", Boolean.class, false))
+      return signStreaming(notSignedDTOCertificate, signer, cpf, prefs);
+
+    // SERMIL - gerar pdf
+    notSignedDTOCertificate.setPdf(communicationService.getSignablePdf(notSignedDTOCertificate, cpf, prefs));
+
+    // LOCAL - assinar pdf
+    val signedDTOCertificate = tokenService.signDTOCertificate(notSignedDTOCertificate, signer);
+
+    // SERMIL - persistir pdf e assinatura
+    return persist(signedDTOCertificate, cpf, prefs);
+  }
+
+  /**
+   * Modo streaming ({@code application.pdf.streaming}): o pdf vai do servidor para um arquivo temporario, o SHA-256 e calculado
+   * durante o download e e ele que e assinado; o pdf e reenviado ao servidor e copiado para a pasta local a partir do arquivo.
+   * O certificado devolvido nao carrega o pdf; o download e servido pelo {@link SignedPdfStore}.
+   */
+  private AssinaturaEntity signStreaming(final CidDocMilitarDTO notSignedDTOCertificate, final PKCS7Signer signer, final String cpf,
+      final Preferences prefs) throws Exception {
+    try (PdfFile pdf = communicationService.downloadSignablePdf(notSignedDTOCertificate, cpf, prefs)) {
+      val signedDTOCertificate = tokenService.signDTOCertificate(notSignedDTOCertificate, pdf, signer);
+      val idempotencyKey = UUID.randomUUID().toString();
+      AssinaturaEntity serverResponseEntity = communicationService.saveSignedDTOCertificate(signedDTOCertificate, pdf, cpf, prefs,
+          idempotencyKey);
+      if (communicationService.isNetworkFailure(serverResponseEntity) && offlineJournal.isEnabled()) {
+        offlineJournal.append(signedDTOCertificate, pdf, cpf, prefs, idempotencyKey);
+        serverResponseEntity = queuedForResubmission();
+      }
+      certificateImageCache.evict(signedDTOCertificate);
+      signedPdfStore.keep(signedDTOCertificate, pdf);
+      archiveWriter.archive(signedDTOCertificate, pdf, prefs);
+      serverResponseEntity.setCertificado(signedDTOCertificate);
+      return serverResponseEntity;
+    }
+  }
+
+  /**
+   * Assina os certificados um apos o outro com o mesmo signer.
+   */
+  public AssinaturaEntity signBatch(final List<CidDocMilitarDTO> certificados, final PKCS7Signer signer, final Preferences prefs) {
+    val result = newBatchResult();
+    for (val notSignedDTOCertificate : certificados) {
+      try {
+        val cpf = notSignedDTOCertificate.getAssinaUsuario().getCpf();
+        collect(result, sign(notSignedDTOCertificate, signer, cpf, prefs));
+      } catch (Exception e) {
+        collectError(result, notSignedDTOCertificate, e);
+      }
+    }
+    log.info("Assinatura em lote terminada: {} de {} certificados assinados.", result.getCertificados().size(), certificados.size());
+    return withArchiveFailures(result);
+  }
+
+  /**
+   * Assina os certificados em tres estagios ligados por filas limitadas: busca dos pdfs no Sermil e calculo do SHA-256 (rede),
+   * assinatura do resumo (serializada no token, que atende uma operacao por vez; em paralelo, com
+   * {@link TokenService#getSigningThreads()} threads, no modo PKCS#12) e persistencia/copia local (rede e disco). Enquanto um
+   * certificado e assinado o proximo pdf ja esta sendo baixado e o anterior persistido, de modo que o lote leva aproximadamente o
+   * tempo do estagio mais lento multiplicado pelo numero de certificados.
+   * <p>
+   * Os dois primeiros estagios rodam num executor proprio ({@code assinatura.pipeline.fetch.threads} mais
+   * {@link TokenService#getSigningThreads()} threads); a persistencia roda na propria thread que chamou. Se um estagio falhar, a
+   * thread for interrompida ou o lote passar de {@code assinatura.pipeline.timeout.ms} os demais param (nenhum fica bloqueado numa
+   * fila), os certificados nao processados sao informados como erro e a interrupcao e propagada.
+   */
+  public AssinaturaEntity signPipelined(final List<CidDocMilitarDTO> certificados, final String alias, final Preferences prefs)
+      throws InterruptedException {
+    val queueSize = env.getProperty("assinatura.pipeline.queue.size", Integer.class, 4);
+    val fetchThreads = Math.min(certificados.size(), env.getProperty("assinatura.pipeline.fetch.threads", Integer.class, 2));
+    val signThreads = Math.min(certificados.size(), tokenService.getSigningThreads());
+    final BlockingQueue<PipelineItem> fetched = new ArrayBlockingQueue<>(Math.max(queueSize, signThreads));
+    final BlockingQueue<PipelineItem> signed = new ArrayBlockingQueue<>(Math.max(queueSize, signThreads));
+    val stop = new AtomicBoolean();
+    val deadline = System.currentTimeMillis() + env.getProperty("assinatura.pipeline.timeout.ms", Long.class, 600000L);
+    val workers = new ArrayList<Future<?>>();
+    final Set<CidDocMilitarDTO> processed = Collections.newSetFromMap(new IdentityHashMap<>());
+    val result = newBatchResult();
+    try {
+      // estagio 1: SERMIL - gerar pdf
+      val next = new AtomicInteger();
+      for (int t = 0; t < fetchThreads; t++) {
+        workers.add(pipelineExecutor.submit(stage(stop, () -> {
+          for (int i = next.getAndIncrement(); i < certificados.size(); i = next.getAndIncrement()) {
+            val notSignedDTOCertificate = certificados.get(i);
+            val item = new PipelineItem(notSignedDTOCertificate);
+            try {
+              item.cpf = notSignedDTOCertificate.getAssinaUsuario().getCpf();
+              notSignedDTOCertificate.setPdf(communicationService.getSignablePdf(notSignedDTOCertificate, item.cpf, prefs));
+              item.sha256 = Digests.sha256(notSignedDTOCertificate.getPdf());
+            } catch (Exception e) {
+              item.error = e;
+            }
+            if (!transfer(fetched, item, stop))
+              return;
+          }
+        })));
+      }
+
+      // estagio 2: LOCAL - assinar pdf (cada thread com o signer da sua sessao)
+      val remaining = new AtomicInteger(certificados.size());
+      for (int t = 0; t < signThreads; t++) {
+        workers.add(pipelineExecutor.submit(stage(stop, () -> {
+          while (remaining.getAndDecrement() > 0) {
+            val item = receive(fetched, stop);
+            if (item == null)
+              return;
+            if (item.error == null) {
+              try {
+                tokenService.signDTOCertificate(item.certificado, item.sha256, tokenService.getSigner(alias));
+              } catch (Exception e) {
+                item.error = e;
+              }
+            }
+            if (!transfer(signed, item, stop))
+              return;
+          }
+        })));
+      }
+
+      // estagio 3: SERMIL - persistir pdf e assinatura, copia local
+      for (int i = 0; i < certificados.size(); i++) {
+        val item = receive(signed, stop, deadline);
+        if (item == null) {
+          val timedOut = !stop.get();
+          stop.set(true);
+          log.error("LOTE INTERROMPIDO ({}) com {} de {} certificados processados.", timedOut ? "tempo limite" : "falha num estagio", i,
+              certificados.size());
+          reportUnprocessed(result, certificados, processed, timedOut ? "batch.timeout" : "batch.interrupted");
+          break;
+        }
+        processed.add(item.certificado);
+        try {
+          if (item.error != null)
+            collectError(result, item.certificado, item.error);
+          else
+            collect(result, persist(item.certificado, item.cpf, prefs));
+        } catch (Exception e) {
+          collectError(result, item.certificado, e);
+        }
+      }
+    } finally {
+      stop.set(true);
+      workers.forEach(worker -> worker.cancel(true));
+    }
+    log.info("Assinatura em lote (pipeline) terminada: {} de {} certificados assinados.", result.getCertificados().size(),
+        certificados.size());
+    return withArchiveFailures(result);
+  }
+
+  /**
+   * Persiste no Sermil; se a rede falhar a assinatura nao e perdida: o certificado vai para o {@link OfflineJournal} e e reenviado
+   * automaticamente, com a mesma chave de idempotencia.
+   */
+  private AssinaturaEntity persist(final CidDocMilitarDTO signedDTOCertificate, final String cpf, final Preferences prefs)
+      throws Exception {
+    val idempotencyKey = UUID.randomUUID().toString();
+    AssinaturaEntity serverResponseEntity = communicationService.saveSignedDTOCertificate(signedDTOCertificate, cpf, prefs,
+        idempotencyKey);
+    if (communicationService.isNetworkFailure(serverResponseEntity) && offlineJournal.isEnabled()) {
+      offlineJournal.append(signedDTOCertificate, signedDTOCertificate.getPdf(), cpf, prefs, idempotencyKey);
+      serverResponseEntity = queuedForResubmission();
+    }
+    certificateImageCache.evict(signedDTOCertificate);
+
+    // store in local file system (em segundo plano)
+    archiveWriter.archive(signedDTOCertificate, prefs);
+
+    // retornar certificado assinado
+    serverResponseEntity.setCertificado(signedDTOCertificate);
+    return serverResponseEntity;
+  }
+
+  /**
+   * As copias locais sao gravadas em segundo plano: falhas ainda nao informadas (desta ou de assinaturas anteriores) vao como
+   * aviso na resposta, sem marcar como nao assinado um certificado ja persistido no Sermil.
+   */
+  private AssinaturaEntity withArchiveFailures(final AssinaturaEntity ae) {
+    archiveWriter.drainFailures().forEach(ae::addWarningMsg);
+    return ae;
+  }
+
+  private AssinaturaEntity queuedForResubmission() {
+    return new AssinaturaEntity().addWarningMsg(messages.get("journal.queued"));
+  }
+
+  private AssinaturaEntity newBatchResult() {
+    val result = new AssinaturaEntity();
+    result.setCertificados(new ArrayList<>());
+    return result;
+  }
+
+  private void collect(final AssinaturaEntity result, final AssinaturaEntity ae) {
+    synchronized (result) {
+      if (ae.getErrorMsgs() != null && ae.getErrorMsgs().size() > 0)
+        ae.getErrorMsgs().forEach(msg -> result.addErrorMsg(itemMsg(ae.getCertificado(), msg)));
+      else
+        result.getCertificados().add(ae.getCertificado());
+      if (ae.getWarningMsgs() != null)
+        ae.getWarningMsgs().forEach(result::addWarningMsg);
+    }
+  }
+
+  private void collectError(final AssinaturaEntity result, final CidDocMilitarDTO certificado, final Exception e) {
+    log.error("ERRO AO ASSINAR CERTIFICADO RA {} DO LOTE: {}", certificado.getRa(), e.getMessage());
+    synchronized (result) {
+      result.addErrorMsg(itemMsg(certificado, messages.get("certificate.sign.error.v1", certificado.getCidadao().getNome())));
+    }
+  }
+
+  /**
+   * Mensagem de um item do lote, prefixada com o RA para que o usuario saiba qual certificado falhou.
+   */
+  private String itemMsg(final CidDocMilitarDTO certificado, final String msg) {
+    return certificado == null ? msg : messages.get("batch.item.error", String.valueOf(certificado.getRa()), msg);
+  }
+
+  /**
+   * Entrega o item ao proximo estagio; {@code false} se o lote foi encerrado antes de haver espaco na fila.
+   */
+  private static boolean transfer(final BlockingQueue<PipelineItem> queue, final PipelineItem item, final AtomicBoolean stop)
+      throws InterruptedException {
+    while (!stop.get())
+      if (queue.offer(item, STAGE_POLL_MS, TimeUnit.MILLISECONDS))
+        return true;
+    return false;
+  }
+
+  /**
+   * Proximo item do estagio anterior; {@code null} se o lote foi encerrado.
+   */
+  private static PipelineItem receive(final BlockingQueue<PipelineItem> queue, final AtomicBoolean stop) throws InterruptedException {
+    while (!stop.get()) {
+      val item = queue.poll(STAGE_POLL_MS, TimeUnit.MILLISECONDS);
+      if (item != null)
+        return item;
+    }
+    return null;
+  }
+
+  /**
+   * Como {@link #receive(BlockingQueue, AtomicBoolean)}, mas desiste tambem em {@code deadline} (epoch ms).
+   */
+  private static PipelineItem receive(final BlockingQueue<PipelineItem> queue, final AtomicBoolean stop, final long deadline)
+      throws InterruptedException {
+    while (!stop.get() && System.currentTimeMillis() < deadline) {
+      val item = queue.poll(STAGE_POLL_MS, TimeUnit.MILLISECONDS);
+      if (item != null)
+        return item;
+    }
+    return null;
+  }
+
+  private void reportUnprocessed(final AssinaturaEntity result, final List<CidDocMilitarDTO> certificados,
+      final Set<CidDocMilitarDTO> processed, final String msgKey) {
+    synchronized (result) {
+      for (val certificado : certificados)
+        if (!processed.contains(certificado))
+          result.addErrorMsg(itemMsg(certificado, messages.get(msgKey)));
+    }
+  }
+
+  /**
+   * Estagio do pipeline: qualquer falha (inclusive interrupcao) encerra o lote para que os outros estagios nao esperem por ele.
+   */
+  private static Callable<Void> stage(final AtomicBoolean stop, final Stage stage) {
+    return () -> {
+      try {
+        stage.run();
+        return null;
+      } catch (InterruptedException e) {
+        stop.set(true);
+        Thread.currentThread().interrupt();
+        throw e;
+      } catch (Throwable e) {
+        stop.set(true);
+        log.error("ERRO NO PIPELINE DE ASSINATURA: {}", e.getMessage());
+        throw e;
+      }
+    };
+  }
+
+  @FunctionalInterface
+  private interface Stage {
+    void run() throws InterruptedException;
+  }
+
+  private static final class PipelineItem {
+    private final CidDocMilitarDTO certificado;
+    private String cpf;
+    private byte[] sha256;
+    private Exception error;
+
+    private PipelineItem(final CidDocMilitarDTO certificado) {
+      this.certificado = certificado;
+    }
+  }
+
+}
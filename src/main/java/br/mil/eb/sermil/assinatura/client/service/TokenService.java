@@ -1,37 +1,48 @@
 package br.mil.eb.sermil.assinatura.client.service;
 
-import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
+import java.security.ProviderException;
 import java.security.PublicKey;
 import java.security.UnrecoverableKeyException;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.demoiselle.signer.core.CertificateManager;
+import org.demoiselle.signer.core.keystore.loader.KeyStoreLoaderException;
 import org.demoiselle.signer.core.keystore.loader.factory.KeyStoreLoaderFactory;
-import org.demoiselle.signer.policy.engine.factory.PolicyFactory.Policies;
-import org.demoiselle.signer.policy.impl.cades.SignerAlgorithmEnum;
-import org.demoiselle.signer.policy.impl.cades.factory.PKCS7Factory;
 import org.demoiselle.signer.policy.impl.cades.pkcs7.PKCS7Signer;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import br.mil.eb.sermil.assinatura.client.util.Digests;
 import br.mil.eb.sermil.assinatura.client.util.Messages;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
 import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
 import br.mil.eb.sermil.assinatura.core.exception.AssinaturaException;
-import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
 import br.mil.eb.sermil.assinatura.core.type.CertICPBrasil;
 import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import br.mil.eb.sermil.assinatura.core.util.CryptoUtil;
 import lombok.val;
 import lombok.extern.slf4j.Slf4j;
 
@@ -44,31 +55,126 @@ import lombok.extern.slf4j.Slf4j;
 @Service
 public class TokenService {
 
-  private static KeyStore keyStore;
+  private static final DateTimeFormatter VALIDITY_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy").withZone(ZoneId.systemDefault());
+
+  /**
+   * Codigos PKCS#11 de token removido ou sessao encerrada.
+   */
+  private static final String[] TOKEN_GONE = { "CKR_DEVICE_REMOVED", "CKR_DEVICE_ERROR", "CKR_TOKEN_NOT_PRESENT",
+      "CKR_TOKEN_NOT_RECOGNIZED", "CKR_SESSION_HANDLE_INVALID", "CKR_SESSION_CLOSED", "CKR_USER_NOT_LOGGED_IN" };
+
+  private final AtomicReference<KeyStore> keyStore = new AtomicReference<>();
+
+  private final ConcurrentMap<String, KeyStoreSession> sessions = new ConcurrentHashMap<>();
+
+  /**
+   * Dados dos certificados por KeyStore (identidade da instancia) e alias: uma leitura feita sobre um KeyStore ja substituido nao
+   * contamina o atual.
+   */
+  private final Map<KeyStore, ConcurrentMap<String, CertificateMetadata>> metadata = Collections.synchronizedMap(new WeakHashMap<>());
+
+  @Autowired
+  private Environment env;
 
   @Autowired
 	private Messages messages;
+
+  @Autowired
+  private Metrics metrics;
   
   public PublicKey getPublicKey(String alia) throws KeyStoreException {
     return this.getKeyStore().getCertificate(alia).getPublicKey();
   }
   
   public PrivateKey getPrivateKey(String alias) throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException {
-    val keyStore = readKeyStore();
-    return (PrivateKey) keyStore.getKey(alias, null);
+    return (PrivateKey) getKeyStore().getKey(alias, keyPassword());
+  }
+
+  /**
+   * Modo keystore em software: com {@code token.pkcs12.file} o certificado A1 e lido desse arquivo PKCS#12 (senha cifrada com
+   * {@link CryptoUtil}, como a do proxy, em {@code token.pkcs12.password}) em vez do token, a chave fica desbloqueada em memoria
+   * e as assinaturas podem ser feitas em paralelo.
+   */
+  public boolean isSoftwareKeyStore() {
+    return !StringUtils.isEmpty(env.getProperty("token.pkcs12.file"));
+  }
+
+  /**
+   * Quantas assinaturas podem ser feitas ao mesmo tempo: {@code token.pkcs12.threads} (padrao: numero de processadores) no modo
+   * PKCS#12 e uma no token.
+   */
+  public int getSigningThreads() {
+    if (!isSoftwareKeyStore())
+      return 1;
+    return Math.max(1, env.getProperty("token.pkcs12.threads", Integer.class, Runtime.getRuntime().availableProcessors()));
+  }
+
+  private char[] keyPassword() {
+    if (!isSoftwareKeyStore())
+      return null;
+    val password = env.getProperty("token.pkcs12.password", "");
+    if (StringUtils.isEmpty(password))
+      return new char[0];
+    try {
+      return CryptoUtil.decrypt(password).toCharArray();
+    } catch (Exception e) {
+      throw new KeyStoreLoaderException("Nao foi possivel decifrar token.pkcs12.password: " + e.getMessage(), e);
+    }
   }
 
-	public KeyStore readKeyStore() {
+  private KeyStore loadPkcs12(String file) {
+    try (InputStream in = Files.newInputStream(Paths.get(file))) {
+      val loaded = KeyStore.getInstance("PKCS12");
+      loaded.load(in, keyPassword());
+      log.info("Keystore PKCS#12 carregada de {}.", file);
+      return loaded;
+    } catch (IOException | GeneralSecurityException e) {
+      throw new KeyStoreLoaderException("Nao foi possivel carregar a keystore PKCS#12 " + file + ": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Enumera novamente o token (operacao lenta em leitoras PKCS#11/A3) e descarta todas as sessoes em cache.
+   */
+	public synchronized KeyStore readKeyStore() {
 	  log.info("Searching keystore....");
-	  val keyStoreLoader = KeyStoreLoaderFactory.factoryKeyStoreLoader();
-	  keyStore = keyStoreLoader.getKeyStore();
-	  log.info("A Keystore of type {} was found.", keyStore.getType());
-	  return keyStore;
+	  val start = System.nanoTime();
+	  val loaded = isSoftwareKeyStore() ? loadPkcs12(env.getProperty("token.pkcs12.file"))
+	      : KeyStoreLoaderFactory.factoryKeyStoreLoader().getKeyStore();
+	  metrics.record("token.keystore.load", start);
+	  closeSessions();
+	  metadata.clear();
+	  keyStore.set(loaded);
+	  log.info("A Keystore of type {} was found.", loaded.getType());
+	  preloadMetadata(loaded);
+	  return loaded;
 	}
 
+	/**
+	 * KeyStore em cache; o token so e enumerado na primeira chamada ou apos {@link #invalidate()}.
+	 */
 	public KeyStore getKeyStore() {
-	  this.readKeyStore();
-	  return keyStore;
+	  val cached = keyStore.get();
+	  if (cached != null)
+	    return cached;
+	  synchronized (this) {
+	    return keyStore.get() != null ? keyStore.get() : readKeyStore();
+	  }
+	}
+
+	/**
+	 * Descarta o KeyStore e as sessoes em cache (token removido ou atualizacao solicitada pelo usuario).
+	 */
+	public synchronized void invalidate() {
+	  log.info("Descartando sessoes do token em cache.");
+	  closeSessions();
+	  metadata.clear();
+	  keyStore.set(null);
+	}
+
+	private void closeSessions() {
+	  sessions.values().forEach(KeyStoreSession::close);
+	  sessions.clear();
 	}
 
 	public List<String> getAliases() throws KeyStoreException {
@@ -79,26 +185,106 @@ public class TokenService {
 	  return (X509Certificate) this.getKeyStore().getCertificate(alia);
 	}
 
-	public PKCS7Signer getSigner(String alias) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException {
+	public PKCS7Signer getSigner(String alias)
+	    throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException, AssinaturaException {
+	  checkValidity(alias);
+	  val start = System.nanoTime();
+	  val signer = getSession(alias).getSigner();
+	  metrics.record("token.signer", start);
+	  return signer;
+	}
 
-    val signer = PKCS7Factory.getInstance().factoryDefault();
+	/**
+	 * Sessao em cache para o alias. Se o alias nao estiver mais disponivel (token removido ou trocado) o token e enumerado
+	 * novamente antes de abrir uma nova sessao.
+	 */
+	public KeyStoreSession getSession(String alias) throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException {
+	  val cached = sessions.get(alias);
+	  if (cached != null && isAliasPresent(cached.getKeyStore(), alias))
+	    return cached;
+	  if (cached != null)
+	    invalidate();
+	  synchronized (this) {
+	    val current = sessions.get(alias);
+	    if (current != null)
+	      return current;
+	    val session = openSession(alias, getKeyStore());
+	    sessions.put(alias, session);
+	    return session;
+	  }
+	}
 
-    val keyStore = readKeyStore();
-    val privateKey = (PrivateKey) keyStore.getKey(alias, null);
-    val certificateChain = keyStore.getCertificateChain(alias);
+	private KeyStoreSession openSession(String alias, KeyStore keyStore)
+	    throws KeyStoreException, UnrecoverableKeyException, NoSuchAlgorithmException {
+	  val privateKey = (PrivateKey) keyStore.getKey(alias, keyPassword());
+	  val certificateChain = keyStore.getCertificateChain(alias);
+	  return new KeyStoreSession(alias, keyStore, certificateChain, privateKey, getSigningThreads());
+	}
+
+	private boolean isAliasPresent(KeyStore keyStore, String alias) {
+	  try {
+	    return keyStore.containsAlias(alias);
+	  } catch (Exception e) {
+	    log.info("Token indisponivel: {}", e.getMessage());
+	    return false;
+	  }
+	}
 
-    signer.setCertificates(certificateChain);
-    signer.setPrivateKey(privateKey);
+  public byte[] signDetatched(PKCS7Signer signer, byte[] content) {
+    val start = System.nanoTime();
+    try {
+      // no token o signer em cache e compartilhado entre requisicoes e o cartao nao aceita operacoes concorrentes; no modo
+      // PKCS#12 a sessao reparte as threads entre getSigningThreads() signers e o lock quase nunca e disputado
+      synchronized (signer) {
+        return signer.doDetachedSign(content);
+      }
+    } catch (RuntimeException e) {
+      metrics.increment("token.sign.error", "mode", "detached");
+      invalidateIfTokenGone(e);
+      throw e;
+    } finally {
+      metrics.record("token.sign", start, "mode", "detached");
+    }
+  }
 
-    signer.setSignaturePolicy(Policies.AD_RB_CADES_2_2);
-    signer.setAlgorithm(SignerAlgorithmEnum.SHA256withRSA);
+  /**
+   * Assinatura destacada CAdES a partir do SHA-256 do conteudo, sem passar o documento inteiro ao signer.
+   */
+  public byte[] signDigest(PKCS7Signer signer, byte[] sha256) {
+    val start = System.nanoTime();
+    try {
+      synchronized (signer) {
+        return signer.doHashSign(sha256);
+      }
+    } catch (RuntimeException e) {
+      metrics.increment("token.sign.error", "mode", "hash");
+      invalidateIfTokenGone(e);
+      throw e;
+    } finally {
+      metrics.record("token.sign", start, "mode", "hash");
+    }
+  }
 
-    return signer;
+  /**
+   * Descarta sessoes e KeyStore somente quando a falha indica que o token saiu ou que a sessao PKCS#11 deixou de valer; erros do
+   * proprio documento ou da politica de assinatura mantem o cache.
+   */
+  private void invalidateIfTokenGone(RuntimeException e) {
+    if (isTokenGone(e)) {
+      log.warn("Token removido ou sessao PKCS#11 encerrada, o token sera enumerado novamente: {}", e.getMessage());
+      invalidate();
+    }
   }
 
-  public byte[] signDetatched(PKCS7Signer signer, byte[] content) {
-    val assinatura = signer.doDetachedSign(content);
-    return assinatura;
+  static boolean isTokenGone(Throwable e) {
+    for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+      // sun.security.pkcs11.wrapper.PKCS11Exception e interna do JDK: comparada pelo nome; o SunPKCS11 a embrulha em ProviderException
+      if ((t instanceof ProviderException || t.getClass().getName().endsWith(".PKCS11Exception")) && t.getMessage() != null)
+        for (val code : TOKEN_GONE)
+          if (t.getMessage().contains(code))
+            return true;
+    }
+    return false;
   }
 
   public byte[] signAttatched(PKCS7Signer signer, byte[] certificateNotSigned) {
@@ -106,27 +292,99 @@ public class TokenService {
   }
 
   public CertICPBrasil getICPBrasilCertificate(String alias) throws AssinaturaException, KeyStoreException {
-	  val certificate = getCertificate(alias);
-	  val cm = new CertificateManager(certificate);
-	  return cm.load(CertICPBrasil.class);
+	  return getMetadata(alias).getCertICPBrasil();
 	}
 
 	public String getCpfFromToken(String alias) throws AssinaturaException, KeyStoreException {
-	  val cpf_ = getICPBrasilCertificate(alias).getCpf();
+	  val cpf_ = getMetadata(alias).getCpf();
 	  if (StringUtils.isEmpty(cpf_))
 	    throw new AssinaturaException(messages.get("certificate.cpf.not.found"));
 	  return cpf_;
 	}
 
+	/**
+	 * Dados do certificado do alias, lidos do token uma unica vez (na descoberta ou no primeiro acesso) e descartados junto com
+	 * as sessoes.
+	 */
+	public CertificateMetadata getMetadata(String alias) throws AssinaturaException, KeyStoreException {
+	  val current = getKeyStore();
+	  val byAlias = metadataOf(current);
+	  val cached = byAlias.get(alias);
+	  if (cached != null)
+	    return cached;
+	  val loaded = loadMetadata(alias, current);
+	  byAlias.put(alias, loaded);
+	  return loaded;
+	}
+
+	private ConcurrentMap<String, CertificateMetadata> metadataOf(KeyStore keyStore) {
+	  return metadata.computeIfAbsent(keyStore, k -> new ConcurrentHashMap<>());
+	}
+
+	/**
+	 * Recusa certificados vencidos (ou ainda nao validos) antes de qualquer operacao no token.
+	 */
+	public void checkValidity(String alias) throws AssinaturaException, KeyStoreException {
+	  val certificate = getMetadata(alias);
+	  if (!certificate.isValidAt(new Date())) {
+	    metrics.increment("token.certificate.expired");
+	    throw new AssinaturaException(messages.get("certificate.validity.error", VALIDITY_FORMAT.format(certificate.getNotBefore().toInstant()),
+	        VALIDITY_FORMAT.format(certificate.getNotAfter().toInstant())));
+	  }
+	}
+
+	private void preloadMetadata(KeyStore loaded) {
+	  val byAlias = metadataOf(loaded);
+	  try {
+	    for (val alias : Collections.list(loaded.aliases())) {
+	      try {
+	        byAlias.put(alias, loadMetadata(alias, loaded));
+	      } catch (Exception e) {
+	        log.info("Nao foi possivel ler os dados do certificado {}: {}", alias, e.getMessage());
+	      }
+	    }
+	  } catch (KeyStoreException e) {
+	    log.info("Nao foi possivel listar os certificados do token: {}", e.getMessage());
+	  }
+	}
+
+	private CertificateMetadata loadMetadata(String alias, KeyStore keyStore) throws AssinaturaException, KeyStoreException {
+	  val certificate = (X509Certificate) keyStore.getCertificate(alias);
+	  if (certificate == null)
+	    throw new AssinaturaException(messages.get("certificate.not.found"));
+	  // sem os validadores padrao (periodo, CRL): a validade e conferida em checkValidity, com mensagem propria
+	  val certICPBrasil = new CertificateManager(certificate, false).load(CertICPBrasil.class);
+	  try {
+	    return new CertificateMetadata(alias, certICPBrasil, certICPBrasil.getCpf(), certificate.getNotBefore(),
+	        certificate.getNotAfter(), Digests.toHex(Digests.sha256(certificate.getEncoded())));
+	  } catch (CertificateEncodingException e) {
+	    throw new AssinaturaException(e.getMessage());
+	  }
+	}
+
 	public CidDocMilitarDTO signDTOCertificate(final CidDocMilitarDTO notSignedDTOCertificate, final String alias, final Preferences preferences)
 	    throws Exception {
-	
+	  return signDTOCertificate(notSignedDTOCertificate, getSigner(alias));
+	}
+
+	/**
+	 * Assina o certificado com um signer ja preparado, permitindo reaproveitar a mesma sessao do token para varios certificados
+	 * (assinatura em lote).
+	 */
+	public CidDocMilitarDTO signDTOCertificate(final CidDocMilitarDTO notSignedDTOCertificate, final PKCS7Signer signer) {
+	  return signDTOCertificate(notSignedDTOCertificate, Digests.sha256(notSignedDTOCertificate.getPdf()), signer);
+	}
+
+	/**
+	 * Assina o SHA-256 ja calculado do pdf (hash-then-sign): o signer nao precisa receber nem resumir o documento inteiro.
+	 */
+	public CidDocMilitarDTO signDTOCertificate(final CidDocMilitarDTO notSignedDTOCertificate, final byte[] sha256, final PKCS7Signer signer) {
+
 	  // sign pdf
-		val notSignedPdf = notSignedDTOCertificate.getPdf();
-	  val signature = createDetatchedSignature(notSignedPdf, alias, preferences);
-	  
+	  val signature = signDigest(signer, sha256);
+	  log.info("Certificado RA {} assinado, sha256 do pdf: {}", notSignedDTOCertificate.getRa(), Digests.toHex(sha256));
+
 	  val signedDTOCertificate = notSignedDTOCertificate;
-	  signedDTOCertificate.setPdf(notSignedPdf);
 	  signedDTOCertificate.setAssinatura(signature);
 	  signedDTOCertificate.setAssinado(true);
 	  signedDTOCertificate.setImage(null); // reset image
@@ -134,39 +392,16 @@ public class TokenService {
 	  return signedDTOCertificate;
 	}
 
-	public void storeSignedPdfInLocalFileSystem(final CidDocMilitarDTO signedDTOCertificate, final Preferences preferences, final AssinaturaEntity ae) {
-	  if (preferences.getConfig().isSavePdfFileInMyLocalSystem() && !StringUtils.isEmpty(preferences.getConfig().getPdfFileSavingLocation())) {
-	    String fileName = new StringBuilder().append(preferences.getConfig().getPdfFileSavingLocation().replace("\\", File.separator)).append(File.separator).append("RA_")
-	        .append(signedDTOCertificate.getRa()).append("-")
-	        .append(new SimpleDateFormat("yyyy-MM-dd_HHmm").format(new Date())).append("-").append(signedDTOCertificate.getTipo())
-	        .append(".pdf").toString();
-	    if(fileName.startsWith("/") || fileName.startsWith(File.separator))
-	    	fileName = "C:" + fileName;
-	    try {
-				Files.write(Paths.get(fileName), signedDTOCertificate.getPdf(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-			} catch (Exception e) {
-				ae.addErrorMsg("Nao foi possivel salvar copia do Certificado assinado de " + signedDTOCertificate.getCidadao().getNome());
-			}
-	  }
-	}
-
-	public void storeSignatureInLocalFileSystem(final CidDocMilitarDTO signedDTOCertificate, final Preferences preferences, AssinaturaEntity ae) {
-	  if (preferences.getConfig().isSavePdfFileInMyLocalSystem() && !StringUtils.isEmpty(preferences.getConfig().getPdfFileSavingLocation())) {
-	    String fileName = new StringBuilder().append(preferences.getConfig().getPdfFileSavingLocation().replace("\\", "/")).append("/").append("RA_")
-	        .append(signedDTOCertificate.getRa()).append("-")
-	        .append(new SimpleDateFormat("yyyy-MM-dd_HHmm").format(new Date())).append("-ASSINATURA").append(".p7s").toString();
-	    if(fileName.startsWith("/") || fileName.startsWith(File.separator))
-	    	fileName = "C:" + fileName;
-	    try {
-				Files.write( Paths.get(fileName), signedDTOCertificate.getAssinatura(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-			} catch (Exception e) {
-				ae.addErrorMsg("Nao foi possivel salvar a assinatura digital do Certificado de " + signedDTOCertificate.getCidadao().getNome());
-			}
-	  }
+	/**
+	 * Versao streaming: assina o SHA-256 calculado durante o download, o pdf permanece no arquivo temporario.
+	 */
+	public CidDocMilitarDTO signDTOCertificate(final CidDocMilitarDTO notSignedDTOCertificate, final PdfFile pdf, final PKCS7Signer signer) {
+	  notSignedDTOCertificate.setPdf(null);
+	  return signDTOCertificate(notSignedDTOCertificate, pdf.getSha256(), signer);
 	}
 
   public byte[] createDetatchedSignature(final byte[] content, final String alias, final Preferences preferences)
-      throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException {
+      throws UnrecoverableKeyException, KeyStoreException, NoSuchAlgorithmException, AssinaturaException {
     return signDetatched(getSigner(alias), content);
   }
 
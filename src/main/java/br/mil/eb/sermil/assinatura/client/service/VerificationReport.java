@@ -0,0 +1,29 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Verificacao em lote de uma pasta de copias locais: totais, tempo gasto e o resultado de cada par pdf + p7s.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class VerificationReport {
+
+  private final int total;
+
+  private final int valid;
+
+  private final int invalid;
+
+  private final long elapsedMs;
+
+  private final List<VerificationResult> results;
+
+}
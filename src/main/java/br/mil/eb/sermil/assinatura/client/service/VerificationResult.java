@@ -0,0 +1,33 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.util.Date;
+import java.util.List;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Resultado da verificacao local de uma assinatura destacada (pdf + p7s) pelo {@link VerificationService}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Getter
+@AllArgsConstructor
+public final class VerificationResult {
+
+  /**
+   * RA do certificado ou nome do arquivo verificado.
+   */
+  private final String source;
+
+  private final boolean valid;
+
+  private final String signer;
+
+  private final Date signDate;
+
+  private final List<String> errors;
+
+}
@@ -0,0 +1,344 @@
+package br.mil.eb.sermil.assinatura.client.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.demoiselle.signer.core.ca.provider.ProviderCAFactory;
+import org.demoiselle.signer.policy.impl.cades.SignatureInformations;
+import org.demoiselle.signer.policy.impl.cades.pkcs7.impl.CAdESChecker;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Verificacao local das assinaturas destacadas geradas pelo {@link TokenService}, sem reenvio ao Sermil: o SHA-256 do pdf e
+ * conferido com o p7s pelo {@link CAdESChecker} do Demoiselle e a cadeia do signatario e validada localmente.
+ * <p>
+ * A cadeia precisa terminar em uma raiz confiavel (AC ICP-Brasil ou {@code verification.truststore.file}); a validade de cada
+ * certificado e conferida na data da assinatura. O encadeamento acima do signatario ate a raiz e o mesmo para todas as
+ * assinaturas de um emissor e fica em cache por emissor durante {@code verification.issuer.cache.seconds}. Pastas inteiras sao
+ * verificadas em um {@link ForkJoinPool} com {@code verification.parallelism} threads (padrao: numero de processadores).
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Service
+public class VerificationService {
+
+  private static final String SHA256_OID = "2.16.840.1.101.3.4.2.1";
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private Metrics metrics;
+
+  @Autowired
+  private ArchiveWriter archiveWriter;
+
+  private final ConcurrentMap<String, IssuerValidation> issuers = new ConcurrentHashMap<>();
+
+  private volatile Map<String, X509Certificate> anchors;
+
+  private ForkJoinPool pool;
+
+  @PostConstruct
+  private void init() {
+    pool = new ForkJoinPool(env.getProperty("verification.parallelism", Integer.class, Runtime.getRuntime().availableProcessors()));
+  }
+
+  @PreDestroy
+  private void destroy() {
+    pool.shutdownNow();
+  }
+
+  public VerificationResult verify(final String source, final byte[] pdf, final byte[] p7s) {
+    return verifyDigest(source, Digests.sha256(pdf), p7s);
+  }
+
+  /**
+   * Verifica todos os pares pdf + p7s de {@code folder}: no formato plano ({@code RA_<ra>-<data>-<tipo>.pdf} com
+   * {@code RA_<ra>-<data>-ASSINATURA.p7s}) e no formato enderecado por conteudo (todas as entradas do {@link ArchiveIndex}).
+   */
+  public VerificationReport verifyFolder(final Path folder) throws IOException, InterruptedException {
+    val start = System.nanoTime();
+    val pairs = pairs(folder);
+    final List<VerificationResult> results;
+    try {
+      results = pool.submit(() -> pairs.parallelStream().map(pair -> verifyFiles(pair.getKey(), pair.getValue()))
+          .collect(Collectors.toList())).get();
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    }
+    val valid = (int) results.stream().filter(VerificationResult::isValid).count();
+    val elapsedMs = (System.nanoTime() - start) / 1_000_000;
+    metrics.record("verification.folder", start);
+    log.info("Verificacao de {}: {} assinaturas, {} validas, {} invalidas em {}ms.", folder, results.size(), valid,
+        results.size() - valid, elapsedMs);
+    return new VerificationReport(results.size(), valid, results.size() - valid, elapsedMs, results);
+  }
+
+  private VerificationResult verifyFiles(final Path pdf, final Path p7s) {
+    val source = pdf.getFileName().toString();
+    try (InputStream in = Files.newInputStream(pdf)) {
+      return verifyDigest(source, Digests.sha256(in), Files.readAllBytes(p7s));
+    } catch (IOException e) {
+      return new VerificationResult(source, false, null, null, Collections.singletonList(e.getMessage()));
+    }
+  }
+
+  private VerificationResult verifyDigest(final String source, final byte[] sha256, final byte[] p7s) {
+    val start = System.nanoTime();
+    try {
+      val errors = new ArrayList<String>();
+      // CAdESChecker guarda estado da ultima verificacao: um por chamada
+      final List<SignatureInformations> signatures = new CAdESChecker().checkSignatureByHash(SHA256_OID, sha256, p7s);
+      if (signatures == null || signatures.isEmpty())
+        return new VerificationResult(source, false, null, null, Collections.singletonList("Nenhuma assinatura encontrada no p7s."));
+      String signer = null;
+      Date signDate = null;
+      for (val signature : signatures) {
+        if (signature.getValidatorErrors() != null)
+          errors.addAll(signature.getValidatorErrors());
+        val chain = signature.getChain();
+        if (chain == null || chain.isEmpty()) {
+          errors.add("Cadeia de certificados ausente no p7s.");
+          continue;
+        }
+        signer = chain.get(0).getSubjectX500Principal().getName();
+        signDate = signature.getSignDate();
+        errors.addAll(validateChain(chain, signDate));
+      }
+      return new VerificationResult(source, errors.isEmpty(), signer, signDate, errors);
+    } catch (Exception e) {
+      metrics.increment("verification.error");
+      return new VerificationResult(source, false, null, null, Collections.singletonList(e.getMessage()));
+    } finally {
+      metrics.record("verification.signature", start);
+    }
+  }
+
+  /**
+   * Erros da cadeia do signatario ({@code chain.get(0)}) ate uma raiz confiavel; lista vazia quando a cadeia e valida. A
+   * validade de cada certificado e conferida na data da assinatura ({@code signDate}, ou agora quando ausente) e a cadeia acima
+   * do signatario, incluindo a raiz, fica em cache por emissor.
+   */
+  public List<String> validateChain(final List<X509Certificate> chain, final Date signDate) {
+    val errors = new ArrayList<String>();
+    val at = signDate == null ? new Date() : signDate;
+    for (val certificate : chain) {
+      try {
+        certificate.checkValidity(at);
+      } catch (Exception e) {
+        errors.add("Certificado " + certificate.getSubjectX500Principal().getName() + " fora da validade em " + at + ".");
+      }
+    }
+    if (chain.size() < 2) {
+      errors.add("Emissor do certificado do signatario nao incluido no p7s.");
+      return errors;
+    }
+    val signerCertificate = chain.get(0);
+    val issuer = chain.get(1);
+    try {
+      signerCertificate.verify(issuer.getPublicKey());
+    } catch (Exception e) {
+      errors.add("Certificado do signatario nao foi emitido por " + issuer.getSubjectX500Principal().getName());
+    }
+    errors.addAll(validateIssuer(chain.subList(1, chain.size())).errors);
+    return errors;
+  }
+
+  private IssuerValidation validateIssuer(final List<X509Certificate> issuerChain) {
+    val ttl = env.getProperty("verification.issuer.cache.seconds", Long.class, 3600L) * 1000;
+    try {
+      val key = fingerprint(issuerChain.get(0));
+      val cached = issuers.get(key);
+      if (cached != null && System.currentTimeMillis() - cached.validatedAt < ttl)
+        return cached;
+      val validation = new IssuerValidation(validateIssuerChain(issuerChain));
+      issuers.put(key, validation);
+      metrics.increment("verification.issuer.validated");
+      return validation;
+    } catch (Exception e) {
+      return new IssuerValidation(Collections.singletonList("Cadeia do emissor invalida: " + e.getMessage()));
+    }
+  }
+
+  /**
+   * Encadeamento das assinaturas ate o ultimo certificado do p7s, que precisa ser uma raiz confiavel ou ter sido emitido por
+   * uma.
+   */
+  private List<String> validateIssuerChain(final List<X509Certificate> chain) throws CertificateEncodingException {
+    val errors = new ArrayList<String>();
+    for (int i = 0; i + 1 < chain.size(); i++) {
+      val certificate = chain.get(i);
+      val issuer = chain.get(i + 1);
+      try {
+        certificate.verify(issuer.getPublicKey());
+      } catch (Exception e) {
+        errors.add("Certificado " + certificate.getSubjectX500Principal().getName() + " nao foi emitido por "
+            + issuer.getSubjectX500Principal().getName());
+      }
+    }
+    val last = chain.get(chain.size() - 1);
+    if (!isTrusted(last))
+      errors.add("Cadeia de certificados nao termina em uma raiz confiavel: " + last.getIssuerX500Principal().getName());
+    return Collections.unmodifiableList(errors);
+  }
+
+  private boolean isTrusted(final X509Certificate certificate) throws CertificateEncodingException {
+    val anchors = trustAnchors();
+    if (anchors.containsKey(fingerprint(certificate)))
+      return true;
+    for (val anchor : anchors.values()) {
+      if (!anchor.getSubjectX500Principal().equals(certificate.getIssuerX500Principal()))
+        continue;
+      try {
+        certificate.verify(anchor.getPublicKey());
+        return true;
+      } catch (Exception e) {
+        log.debug("Raiz {} nao confere: {}", anchor.getSubjectX500Principal().getName(), e.getMessage());
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Raizes confiaveis: as AC ICP-Brasil conhecidas pelo Demoiselle ({@code verification.trust.icp-brasil}, padrao true) e os
+   * certificados de {@code verification.truststore.file}. Carregadas uma unica vez, no primeiro uso.
+   */
+  private Map<String, X509Certificate> trustAnchors() {
+    val loaded = this.anchors;
+    if (loaded != null)
+      return loaded;
+    synchronized (this) {
+      if (this.anchors == null)
+        this.anchors = loadTrustAnchors();
+      return this.anchors;
+    }
+  }
+
+  private Map<String, X509Certificate> loadTrustAnchors() {
+    val anchors = new HashMap<String, X509Certificate>();
+    if (env.getProperty("verification.trust.icp-brasil", Boolean.class, true)) {
+      for (val provider : ProviderCAFactory.getInstance().factory()) {
+        try {
+          for (val ca : provider.getCAs())
+            anchors.put(fingerprint(ca), ca);
+        } catch (Exception e) {
+          log.info("Nao foi possivel carregar as AC de {}: {}", provider.getName(), e.getMessage());
+        }
+      }
+    }
+    val file = env.getProperty("verification.truststore.file");
+    if (!StringUtils.isEmpty(file)) {
+      try (InputStream in = Files.newInputStream(Paths.get(file))) {
+        val trustStore = KeyStore.getInstance(env.getProperty("verification.truststore.type", "JKS"));
+        val password = env.getProperty("verification.truststore.password");
+        trustStore.load(in, password == null ? null : password.toCharArray());
+        for (val alias : Collections.list(trustStore.aliases())) {
+          val certificate = trustStore.getCertificate(alias);
+          if (certificate instanceof X509Certificate)
+            anchors.put(fingerprint((X509Certificate) certificate), (X509Certificate) certificate);
+        }
+      } catch (Exception e) {
+        log.error("NAO FOI POSSIVEL CARREGAR O TRUSTSTORE {}: {}", file, e.getMessage());
+      }
+    }
+    if (anchors.isEmpty())
+      log.error("NENHUMA RAIZ CONFIAVEL CONFIGURADA: TODAS AS ASSINATURAS SERAO CONSIDERADAS INVALIDAS.");
+    else
+      log.info("{} raizes confiaveis carregadas para a verificacao local.", anchors.size());
+    return Collections.unmodifiableMap(anchors);
+  }
+
+  private static String fingerprint(final X509Certificate certificate) throws CertificateEncodingException {
+    return Digests.toHex(Digests.sha256(certificate.getEncoded()));
+  }
+
+  /**
+   * Pares pdf -> p7s da pasta, em ordem de nome. No formato enderecado por conteudo o par vem do {@link ArchiveIndex} da pasta,
+   * ja que pdf e assinatura tem nomes (hashes) diferentes; o indice e lido pela instancia ja aberta pelo {@link ArchiveWriter}.
+   */
+  private List<Map.Entry<Path, Path>> pairs(final Path folder) throws IOException {
+    val flatPairs = new LinkedHashMap<Path, Path>();
+    final List<Path> files;
+    val objects = folder.resolve("objects");
+    try (Stream<Path> walk = Files.walk(folder)) {
+      files = walk.filter(Files::isRegularFile).filter(f -> !f.startsWith(objects)).sorted().collect(Collectors.toList());
+    }
+    val signatures = new HashMap<String, Path>();
+    for (val file : files) {
+      val name = file.getFileName().toString();
+      if (name.endsWith("-ASSINATURA.p7s"))
+        signatures.put(file.resolveSibling(name.substring(0, name.length() - "-ASSINATURA.p7s".length())).toString(), file);
+      else if (name.endsWith(".p7s"))
+        signatures.put(file.resolveSibling(name.substring(0, name.length() - ".p7s".length())).toString(), file);
+    }
+    for (val file : files) {
+      val name = file.getFileName().toString();
+      if (!name.endsWith(".pdf"))
+        continue;
+      val base = file.resolveSibling(name.substring(0, name.length() - ".pdf".length())).toString();
+      // formato plano: RA_<ra>-<data>-<tipo>.pdf assinado em RA_<ra>-<data>-ASSINATURA.p7s
+      val flat = base.lastIndexOf('-') > 0 ? signatures.get(base.substring(0, base.lastIndexOf('-'))) : null;
+      val p7s = signatures.containsKey(base) ? signatures.get(base) : flat;
+      if (p7s != null)
+        flatPairs.put(file, p7s);
+    }
+    final List<Map.Entry<Path, Path>> pairs = new ArrayList<>(flatPairs.entrySet());
+    // o mesmo pdf pode ter mais de uma assinatura
+    try {
+      for (val record : archiveWriter.records(folder)) {
+        val pdf = ArchiveIndex.objectPath(folder, record.getHash(), "pdf");
+        val p7s = ArchiveIndex.objectPath(folder, record.getSignatureHash(), "p7s");
+        if (Files.exists(pdf) && Files.exists(p7s))
+          pairs.add(new AbstractMap.SimpleImmutableEntry<>(pdf, p7s));
+      }
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL LER O INDICE DO ARQUIVO LOCAL EM {}: {}", folder, e.getMessage());
+    }
+    return pairs;
+  }
+
+  private static final class IssuerValidation {
+    private final List<String> errors;
+    private final long validatedAt = System.currentTimeMillis();
+
+    private IssuerValidation(final List<String> errors) {
+      this.errors = errors;
+    }
+  }
+
+}
@@ -1,15 +1,49 @@
 package br.mil.eb.sermil.assinatura.client.service;
 
 
+import java.io.File;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+
+import br.mil.eb.sermil.assinatura.client.AssinaturaClient;
 import javafx.application.Platform;
+import javafx.stage.DirectoryChooser;
+import lombok.val;
 
 /**
+ * Interacoes com a janela JavaFX. Os dialogos sao abertos na thread do JavaFX e o resultado e entregue por um
+ * {@link CompletableFuture}, sem bloquear a thread da requisicao.
+ *
  * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
  * @version 0.1.3
  * @since 0.1.0
  */
+@Service
 public class WindowService {
+
 	public void exit() {
 		Platform.exit();
 	}
+
+	/**
+	 * Abre o seletor de pastas. O futuro e completado com a pasta escolhida ou vazio se o usuario cancelar o dialogo.
+	 */
+	public CompletableFuture<Optional<String>> chooseDirectory(String initialDirectory) {
+		val result = new CompletableFuture<Optional<String>>();
+		Platform.runLater(() -> {
+			try {
+				val directoryChooser = new DirectoryChooser();
+				if (!StringUtils.isEmpty(initialDirectory) && new File(initialDirectory).isDirectory())
+					directoryChooser.setInitialDirectory(new File(initialDirectory));
+				val selectedDirectory = directoryChooser.showDialog(AssinaturaClient.stage);
+				result.complete(selectedDirectory == null ? Optional.empty() : Optional.of(selectedDirectory.getAbsolutePath()));
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		});
+		return result;
+	}
 }
@@ -0,0 +1,58 @@
+package br.mil.eb.sermil.assinatura.client.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-256 dos pdfs assinados. O mesmo resumo e usado na assinatura (hash-then-sign), na verificacao e nos registros de auditoria.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public final class Digests {
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private Digests() {
+  }
+
+  public static MessageDigest newSha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public static byte[] sha256(byte[] content) {
+    return newSha256().digest(content);
+  }
+
+  public static byte[] sha256(InputStream in) throws IOException {
+    MessageDigest digest = newSha256();
+    byte[] buffer = new byte[64 * 1024];
+    for (int n; (n = in.read(buffer)) > 0;)
+      digest.update(buffer, 0, n);
+    return digest.digest();
+  }
+
+  public static String toHex(byte[] digest) {
+    char[] chars = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      chars[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[digest[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  public static byte[] fromHex(String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    return bytes;
+  }
+
+}
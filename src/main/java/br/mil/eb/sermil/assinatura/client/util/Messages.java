@@ -38,7 +38,7 @@ public class Messages {
   }
 
   public String get(String code, String... args) {
-    return accessor.getMessage(code, new Object[] { args }, DEFAULT_MSG);
+    return accessor.getMessage(code, args, DEFAULT_MSG);
   }
 
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package br.mil.eb.sermil.assinatura.client.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Temporizadores e contadores locais (carga do keystore, assinatura, chamadas ao servidor, gravacoes em disco). Ficam disponiveis
+ * no endpoint local {@code /metrics/local} e sao gravados periodicamente ({@code metrics.file.interval.ms}) em
+ * {@code metrics.file}, com rotacao por tamanho, para que o suporte possa recolhe-los das maquinas sem acesso a rede.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Component
+public class Metrics {
+
+  @Autowired
+  private Environment env;
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    val t = new Thread(r, "metrics-writer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  @PostConstruct
+  private void init() {
+    val interval = env.getProperty("metrics.file.interval.ms", Long.class, 60000L);
+    scheduler.scheduleWithFixedDelay(this::writeFile, interval, interval, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void destroy() {
+    scheduler.shutdown();
+    writeFile();
+  }
+
+  /**
+   * Registra a duracao de uma operacao iniciada em {@code startNanos} ({@link System#nanoTime()}). As tags sao pares
+   * chave/valor.
+   */
+  public void record(String name, long startNanos, String... tags) {
+    timers.computeIfAbsent(key(name, tags), k -> new Timer()).record(System.nanoTime() - startNanos);
+  }
+
+  public void increment(String name, String... tags) {
+    counters.computeIfAbsent(key(name, tags), k -> new LongAdder()).increment();
+  }
+
+  public Map<String, Object> snapshot() {
+    val timerSnapshot = new TreeMap<String, Object>();
+    timers.forEach((k, t) -> timerSnapshot.put(k, t.snapshot()));
+    val counterSnapshot = new TreeMap<String, Object>();
+    counters.forEach((k, c) -> counterSnapshot.put(k, c.sum()));
+    val snapshot = new LinkedHashMap<String, Object>();
+    snapshot.put("timestamp", System.currentTimeMillis());
+    snapshot.put("timers", timerSnapshot);
+    snapshot.put("counters", counterSnapshot);
+    return snapshot;
+  }
+
+  private void writeFile() {
+    try {
+      val file = Paths.get(env.getProperty("metrics.file", System.getProperty("user.home") + "/.assinatura/metrics.log"));
+      Files.createDirectories(file.toAbsolutePath().getParent());
+      rotate(file);
+      val line = objectMapper.writeValueAsString(snapshot()) + System.lineSeparator();
+      Files.write(file, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    } catch (Exception e) {
+      log.error("NAO FOI POSSIVEL GRAVAR O ARQUIVO DE METRICAS: {}", e.getMessage());
+    }
+  }
+
+  private void rotate(Path file) throws IOException {
+    if (!Files.exists(file) || Files.size(file) < env.getProperty("metrics.file.max.bytes", Long.class, 5L * 1024 * 1024))
+      return;
+    val maxFiles = env.getProperty("metrics.file.max.files", Integer.class, 3);
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      val older = Paths.get(file + "." + i);
+      if (Files.exists(older))
+        Files.move(older, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+    }
+    Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  private static String key(String name, String... tags) {
+    if (tags.length == 0)
+      return name;
+    val sb = new StringBuilder(name).append('{');
+    for (int i = 0; i + 1 < tags.length; i += 2) {
+      if (i > 0)
+        sb.append(',');
+      sb.append(tags[i]).append('=').append(tags[i + 1]);
+    }
+    return sb.append('}').toString();
+  }
+
+  private static final class Timer {
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    private void record(long nanos) {
+      count.increment();
+      totalNanos.add(nanos);
+      maxNanos.accumulate(nanos);
+    }
+
+    private Map<String, Object> snapshot() {
+      val n = count.sum();
+      val snapshot = new LinkedHashMap<String, Object>();
+      snapshot.put("count", n);
+      snapshot.put("totalMs", totalNanos.sum() / 1_000_000);
+      snapshot.put("meanMs", n == 0 ? 0 : totalNanos.sum() / n / 1_000_000.0);
+      snapshot.put("maxMs", maxNanos.get() / 1_000_000.0);
+      return snapshot;
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+package br.mil.eb.sermil.assinatura.client.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Log das comunicacoes com o Assinatura Servidor. Em INFO registra apenas metadados (url, status, tamanho e latencia); os corpos
+ * (que carregam pdfs e imagens em base64) so sao serializados em DEBUG e limitados a {@code log.body.max.chars} caracteres.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Component
+public class PayloadLogger {
+
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  @Autowired
+  private Environment env;
+
+  public void exchange(String method, String url, ResponseEntity<?> res, long startNanos) {
+    val latency = (System.nanoTime() - startNanos) / 1_000_000;
+    log.info("Comunicacao {} com Assinatura Servidor terminada: {} status={} bytes={} latencia={}ms", method, url,
+        res.getStatusCodeValue(), res.getHeaders().getContentLength(), latency);
+    debug("Resposta " + method + " " + url, res.getBody());
+  }
+
+  public void debug(String description, Object body) {
+    if (log.isDebugEnabled())
+      log.debug("{}: {}", description, toJson(body));
+  }
+
+  /**
+   * Serializa no maximo {@code log.body.max.chars} caracteres, interrompendo a escrita ao atingir o limite.
+   */
+  public String toJson(Object body) {
+    val max = env.getProperty("log.body.max.chars", Integer.class, 2048);
+    val writer = new LimitedWriter(max);
+    try {
+      objectMapper.writeValue(writer, body);
+    } catch (IOException e) {
+      if (!writer.isTruncated())
+        return "<" + e.getMessage() + ">";
+    }
+    return writer.isTruncated() ? writer.toString() + "...(truncado)" : writer.toString();
+  }
+
+  private static final class LimitedWriter extends Writer {
+    private final StringBuilder sb = new StringBuilder();
+    private final int max;
+    private boolean truncated;
+
+    private LimitedWriter(int max) {
+      this.max = max;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      val remaining = max - sb.length();
+      if (len > remaining) {
+        sb.append(cbuf, off, remaining);
+        truncated = true;
+        throw new IOException("limite de log atingido");
+      }
+      sb.append(cbuf, off, len);
+    }
+
+    private boolean isTruncated() {
+      return truncated;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+      return sb.toString();
+    }
+  }
+
+}
@@ -0,0 +1,39 @@
+package br.mil.eb.sermil.assinatura.client.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Pdf mantido em arquivo temporario em vez de {@code byte[]}, junto com o tamanho e o SHA-256 calculados durante o download.
+ * {@link #close()} remove o arquivo.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+@Getter
+@AllArgsConstructor
+public final class PdfFile implements AutoCloseable {
+
+  private final Path path;
+
+  private final long size;
+
+  private final byte[] sha256;
+
+  @Override
+  public void close() {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      log.error("NAO FOI POSSIVEL REMOVER O ARQUIVO TEMPORARIO {}: {}", path, e.getMessage());
+    }
+  }
+
+}
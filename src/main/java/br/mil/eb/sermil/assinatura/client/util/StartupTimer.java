@@ -0,0 +1,30 @@
+package br.mil.eb.sermil.assinatura.client.util;
+
+import java.lang.management.ManagementFactory;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Registra no log o tempo de cada fase da inicializacao, desde o inicio da JVM.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+public final class StartupTimer {
+
+  private static final long JVM_START = ManagementFactory.getRuntimeMXBean().getStartTime();
+
+  private static long last = JVM_START;
+
+  private StartupTimer() {
+  }
+
+  public static synchronized void mark(String phase) {
+    final long now = System.currentTimeMillis();
+    log.info("Inicializacao - {}: {} ms desde a fase anterior, {} ms desde o inicio da JVM", phase, now - last, now - JVM_START);
+    last = now;
+  }
+
+}
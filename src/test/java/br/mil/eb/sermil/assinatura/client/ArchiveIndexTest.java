@@ -0,0 +1,104 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import br.mil.eb.sermil.assinatura.client.service.ArchiveIndex;
+import br.mil.eb.sermil.assinatura.client.service.ArchiveRecord;
+import br.mil.eb.sermil.assinatura.client.util.Digests;
+import lombok.val;
+
+/**
+ * Indice do arquivo local: ampliacao da tabela, reabertura, consultas que nao criam nada e chaves exatas.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class ArchiveIndexTest {
+
+  private Path root;
+
+  @Before
+  public void init() throws IOException {
+    root = Files.createTempDirectory("archive-index");
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    try (Stream<Path> walk = Files.walk(root)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  @Test
+  public void entriesSurviveGrowAndReopen() throws IOException {
+    val total = 2000;
+    try (ArchiveIndex index = ArchiveIndex.open(root)) {
+      for (int ra = 1; ra <= total; ra++)
+        index.put(record(ra, 1));
+      // mesmo (RA, tipo): substitui
+      index.put(record(7, 1, "12345678901"));
+      assertEquals(total, index.size());
+    }
+    try (ArchiveIndex index = ArchiveIndex.open(root)) {
+      assertEquals(total, index.size());
+      for (int ra = 1; ra <= total; ra++)
+        assertEquals(hash("pdf" + ra), index.find(ra, 1).getHash());
+      assertEquals("12345678901", index.find(7, 1).getCpf());
+      assertEquals(hash("p7s7"), index.find(7, 1).getSignatureHash());
+      assertNull(index.find(1, 2));
+      assertNull(index.find(total + 1, 1));
+    }
+  }
+
+  @Test
+  public void openExistingDoesNotCreateIndex() throws IOException {
+    val missing = root.resolve("nao-existe");
+    assertNull(ArchiveIndex.openExisting(missing));
+    assertFalse(Files.exists(missing));
+    assertNull(ArchiveIndex.openExisting(root));
+    try (Stream<Path> files = Files.list(root)) {
+      assertEquals(0, files.count());
+    }
+    ArchiveIndex.open(root).close();
+    try (ArchiveIndex index = ArchiveIndex.openExisting(root)) {
+      assertNotNull(index);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nonNumericRaIsRejected() {
+    ArchiveIndex.raKey("12A");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nonNumericTipoIsRejected() {
+    ArchiveIndex.tipoKey("-1");
+  }
+
+  private static ArchiveRecord record(long ra, int tipo) {
+    return new ArchiveRecord(ra, tipo, null, System.currentTimeMillis(), hash("pdf" + ra), hash("p7s" + ra));
+  }
+
+  private static ArchiveRecord record(long ra, int tipo, String cpf) {
+    return new ArchiveRecord(ra, tipo, cpf, System.currentTimeMillis(), hash("pdf" + ra), hash("p7s" + ra));
+  }
+
+  private static String hash(String content) {
+    return Digests.toHex(Digests.sha256(content.getBytes()));
+  }
+
+}
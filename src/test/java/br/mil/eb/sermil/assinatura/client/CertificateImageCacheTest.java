@@ -0,0 +1,134 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.CertificateImageCache;
+import br.mil.eb.sermil.assinatura.client.service.CommunicationService;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+
+/**
+ * Cache de imagens: LRU limitado por bytes e remocao que descarta cargas ainda em andamento, sem guardar remocoes alem delas.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class CertificateImageCacheTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private final Preferences prefs = new Preferences();
+
+  private CommunicationService communicationService;
+
+  private CertificateImageCache cache;
+
+  @Before
+  public void init() {
+    communicationService = mock(CommunicationService.class);
+    cache = new CertificateImageCache();
+    ReflectionTestUtils.setField(cache, "env", new MockEnvironment().withProperty("image.cache.max.bytes", "10"));
+    ReflectionTestUtils.setField(cache, "communicationService", communicationService);
+    ReflectionTestUtils.invokeMethod(cache, "init");
+  }
+
+  @After
+  public void destroy() {
+    ReflectionTestUtils.invokeMethod(cache, "destroy");
+  }
+
+  @Test
+  public void leastRecentlyUsedImageIsEvictedByBytes() throws Exception {
+    val one = certificado(1);
+    val two = certificado(2);
+    val three = certificado(3);
+    answer(one, new byte[4]);
+    answer(two, new byte[4]);
+    answer(three, new byte[4]);
+
+    cache.getImage(one, prefs);
+    cache.getImage(two, prefs);
+    cache.getImage(one, prefs);
+    // 12 bytes > 10: sai o menos usado recentemente (RA 2)
+    cache.getImage(three, prefs);
+    cache.getImage(one, prefs);
+    cache.getImage(two, prefs);
+
+    verify(communicationService, times(1)).post(eq(one), anyString(), anyString(), any());
+    verify(communicationService, times(2)).post(eq(two), anyString(), anyString(), any());
+  }
+
+  @Test
+  public void evictDropsImageLoadedBeforeIt() throws Exception {
+    val certificado = certificado(1);
+    val release = new CountDownLatch(1);
+    when(communicationService.post(eq(certificado), anyString(), anyString(), any())).thenAnswer(invocation -> {
+      release.await(5, TimeUnit.SECONDS);
+      return entity(certificado, new byte[] { 1 });
+    });
+
+    cache.prefetch(Collections.singletonList(certificado), prefs);
+    verify(communicationService, timeout(5000)).post(eq(certificado), anyString(), anyString(), any());
+    cache.evict(certificado);
+    release.countDown();
+    Thread.sleep(200);
+
+    answer(certificado, new byte[] { 2 });
+    assertArrayEquals(new byte[] { 2 }, cache.getImage(certificado, prefs));
+    // nenhuma carga em andamento: a remocao nao precisa mais ser lembrada
+    assertTrue(evicted().isEmpty());
+  }
+
+  @Test
+  public void evictionsWithoutLoadsAreNotKept() throws Exception {
+    for (int ra = 0; ra < 1000; ra++)
+      cache.evict(certificado(ra));
+    assertEquals(0, evicted().size());
+  }
+
+  private Map<?, ?> evicted() {
+    return (Map<?, ?>) ReflectionTestUtils.getField(cache, "evicted");
+  }
+
+  private void answer(CidDocMilitarDTO certificado, byte[] image) throws Exception {
+    when(communicationService.post(eq(certificado), anyString(), anyString(), any())).thenReturn(entity(certificado, image));
+  }
+
+  private AssinaturaEntity entity(CidDocMilitarDTO certificado, byte[] image) throws Exception {
+    val copy = objectMapper.readValue(objectMapper.writeValueAsBytes(certificado), CidDocMilitarDTO.class);
+    copy.setImage(image);
+    return AssinaturaEntity.builder().certificado(copy).build();
+  }
+
+  private CidDocMilitarDTO certificado(int ra) throws Exception {
+    return objectMapper.readValue("{\"ra\":\"" + ra + "\",\"tipo\":1,\"assinaUsuario\":{\"cpf\":\"55555555555\"}}",
+        CidDocMilitarDTO.class);
+  }
+
+}
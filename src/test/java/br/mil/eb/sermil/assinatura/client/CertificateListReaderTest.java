@@ -0,0 +1,66 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.CertificateListReader;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import lombok.val;
+
+/**
+ * Leitura da lista de {@code /user/certificates}: o usuario e associado a todos os certificados, venha antes ou depois da
+ * lista na resposta.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class CertificateListReaderTest {
+
+  private static final String USUARIO = "\"usuario\":{\"cpf\":\"55555555555\"}";
+
+  private static final String CERTIFICADOS = "\"certificados\":[{\"ra\":\"1\",\"tipo\":1},{\"ra\":\"2\",\"tipo\":1}]";
+
+  private final CertificateListReader reader = new CertificateListReader(new ObjectMapper());
+
+  @Test
+  public void usuarioBeforeCertificados() throws Exception {
+    assertUsuarioApplied(read("{" + USUARIO + "," + CERTIFICADOS + "}"));
+  }
+
+  @Test
+  public void usuarioAfterCertificados() throws Exception {
+    assertUsuarioApplied(read("{" + CERTIFICADOS + "," + USUARIO + "}"));
+  }
+
+  @Test(expected = IOException.class)
+  public void errorMsgsBecomeException() throws Exception {
+    read("{\"errorMsgs\":[\"Usuario nao encontrado\"]}");
+  }
+
+  private List<CidDocMilitarDTO> read(String json) throws IOException {
+    val certificados = new ArrayList<CidDocMilitarDTO>();
+    val count = reader.read(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), certificados::add);
+    assertEquals(count, certificados.size());
+    return certificados;
+  }
+
+  private static void assertUsuarioApplied(List<CidDocMilitarDTO> certificados) {
+    assertEquals(2, certificados.size());
+    for (val certificado : certificados) {
+      assertNotNull(certificado.getAssinaUsuario());
+      assertEquals("55555555555", certificado.getAssinaUsuario().getCpf());
+    }
+  }
+
+}
@@ -0,0 +1,128 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+
+import br.mil.eb.sermil.assinatura.client.service.CommunicationService;
+import br.mil.eb.sermil.assinatura.client.service.HeadersCache;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PayloadLogger;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+
+/**
+ * Upload do pdf assinado sem buffer: o corpo vai direto para a conexao, sem {@code Content-Length} calculado a partir de um
+ * {@code byte[]}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class CommunicationServiceTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private HttpServer server;
+
+  private Path pdf;
+
+  private CommunicationService communicationService;
+
+  @Before
+  public void init() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.start();
+    pdf = Files.createTempFile("upload", ".pdf");
+
+    val headersCache = mock(HeadersCache.class);
+    when(headersCache.getToken(anyString())).thenReturn("token");
+    when(headersCache.getPreferences(any(Preferences.class))).thenReturn("{}");
+    when(headersCache.getVerificationParameter()).thenReturn("verificacao");
+
+    communicationService = new CommunicationService();
+    ReflectionTestUtils.setField(communicationService, "env", new MockEnvironment().withProperty("header.prefs.name", "prefs")
+        .withProperty("remote.server.url", "http://localhost:" + server.getAddress().getPort()));
+    ReflectionTestUtils.setField(communicationService, "headersCache", headersCache);
+    ReflectionTestUtils.setField(communicationService, "objectMapper", objectMapper);
+    ReflectionTestUtils.setField(communicationService, "payloadLogger", mock(PayloadLogger.class));
+    ReflectionTestUtils.setField(communicationService, "metrics", mock(Metrics.class));
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    ReflectionTestUtils.invokeMethod(communicationService, "destroy");
+    server.stop(0);
+    Files.deleteIfExists(pdf);
+  }
+
+  @Test
+  public void requestsAreNotBuffered() throws Exception {
+    val request = communicationService.getRestTemplate(prefs()).getRequestFactory()
+        .createRequest(new URI("http://localhost/token/certificate/persistir"), HttpMethod.POST);
+    assertTrue(request instanceof StreamingHttpOutputMessage);
+  }
+
+  @Test
+  public void signedPdfIsStreamed() throws Exception {
+    val content = new byte[256 * 1024];
+    for (int i = 0; i < content.length; i++)
+      content[i] = (byte) i;
+    Files.write(pdf, content);
+
+    val headers = new AtomicReference<Headers>();
+    val body = new AtomicReference<byte[]>();
+    server.createContext("/token/certificate/persistir", exchange -> {
+      headers.set(exchange.getRequestHeaders());
+      body.set(IOUtils.toByteArray(exchange.getRequestBody()));
+      val response = "{}".getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, response.length);
+      exchange.getResponseBody().write(response);
+      exchange.close();
+    });
+
+    val certificado = objectMapper.readValue("{\"ra\":\"1\",\"tipo\":1}", CidDocMilitarDTO.class);
+    communicationService.saveSignedDTOCertificate(certificado, new PdfFile(pdf, content.length, new byte[0]), "12345678901", prefs());
+
+    // sem buffer o tamanho nao e conhecido antes do envio: o HttpClient usa chunked
+    assertEquals("chunked", headers.get().getFirst("Transfer-Encoding"));
+    assertNull(headers.get().getFirst("Content-Length"));
+    assertArrayEquals(content, objectMapper.readTree(body.get()).path("certificado").path("pdf").binaryValue());
+  }
+
+  private Preferences prefs() throws IOException {
+    val prefs = objectMapper.readValue("{\"config\":{},\"filter\":{}}", Preferences.class);
+    prefs.getConfig().setDataSource("remote");
+    return prefs;
+  }
+
+}
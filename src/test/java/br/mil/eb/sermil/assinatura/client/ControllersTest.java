@@ -14,7 +14,9 @@ import static org.springframework.http.MediaType.MULTIPART_FORM_DATA;
 import static org.springframework.http.MediaType.TEXT_EVENT_STREAM;
 import static org.springframework.http.MediaType.TEXT_HTML;
 import static org.springframework.http.MediaType.TEXT_PLAIN;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 import java.util.stream.Stream;
@@ -32,6 +34,7 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.test.context.junit4.SpringRunner;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.request.MockMvcRequestBuilders;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -247,11 +250,14 @@ public class ControllersTest {
   @Test
   public void test_UserInfo_OK() throws Exception {
     //@formatter:off
-    mockMvc.perform(MockMvcRequestBuilders
+    MvcResult result = mockMvc.perform(MockMvcRequestBuilders
     		.post(USER_INFO)
 				.contentType(APPLICATION_JSON_VALUE)
 				.content(new ObjectMapper().writeValueAsString(new Preferences()))
 				.accept(APPLICATION_JSON_VALUE))
+    .andExpect(request().asyncStarted())
+    .andReturn();
+    mockMvc.perform(asyncDispatch(result))
     .andExpect(content().contentTypeCompatibleWith(APPLICATION_JSON_VALUE))
     .andExpect(status().isOk());
     //@formatter:on
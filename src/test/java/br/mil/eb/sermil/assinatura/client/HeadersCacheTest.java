@@ -0,0 +1,104 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.HeadersCache;
+import br.mil.eb.sermil.assinatura.client.service.PreferencesStore;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+
+/**
+ * Cabecalhos em cache: validade do JWT pelo {@code exp} e preferencias serializadas uma vez por versao do
+ * {@link PreferencesStore}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class HeadersCacheTest {
+
+  private final ObjectMapper objectMapper = spy(new ObjectMapper());
+
+  private final PreferencesStore preferencesStore = mock(PreferencesStore.class);
+
+  private HeadersCache cache;
+
+  @Before
+  public void init() {
+    cache = new HeadersCache();
+    ReflectionTestUtils.setField(cache, "env", new MockEnvironment().withProperty("header.jwt.skew.seconds", "30")
+        .withProperty("header.jwt.cache.seconds", "60"));
+    ReflectionTestUtils.setField(cache, "objectMapper", objectMapper);
+    ReflectionTestUtils.setField(cache, "preferencesStore", preferencesStore);
+    ReflectionTestUtils.invokeMethod(cache, "init");
+  }
+
+  @Test
+  public void tokenExpiresSkewBeforeExp() {
+    val now = System.currentTimeMillis();
+    val exp = now / 1000 + 3600;
+    assertEquals(exp * 1000 - 30000, (long) ReflectionTestUtils.invokeMethod(cache, "expiresAt", jwt("{\"sub\":\"1\",\"exp\":" + exp + "}"), now));
+    // sem exp: validade configurada
+    assertEquals(now + 60000, (long) ReflectionTestUtils.invokeMethod(cache, "expiresAt", jwt("{\"sub\":\"1\"}"), now));
+    assertEquals(now + 60000, (long) ReflectionTestUtils.invokeMethod(cache, "expiresAt", "nao-e-jwt", now));
+  }
+
+  @Test
+  public void tokenIsReusedUntilExpiry() {
+    val token = cache.getToken("55555555555");
+    assertSame(token, cache.getToken("55555555555"));
+  }
+
+  @Test
+  public void storedPreferencesAreSerializedOncePerVersion() throws Exception {
+    val stored = prefs("remote");
+    when(preferencesStore.isCurrent(stored)).thenReturn(true);
+    when(preferencesStore.getVersion()).thenReturn(1L);
+    val remote = cache.getPreferences(stored);
+    assertSame(remote, cache.getPreferences(stored));
+    verify(objectMapper, times(1)).writeValueAsString(any());
+
+    // nova versao (gravacao ou recarga externa): serializa de novo
+    stored.getConfig().setDataSource("local");
+    when(preferencesStore.getVersion()).thenReturn(2L);
+    assertEquals("local", objectMapper.readValue(cache.getPreferences(stored), Preferences.class).getConfig().getDataSource());
+  }
+
+  @Test
+  public void otherPreferencesAreSerializedPerCall() throws Exception {
+    val prefs = prefs("remote");
+    cache.getPreferences(prefs);
+    prefs.getConfig().setDataSource("local");
+    assertEquals("local", objectMapper.readValue(cache.getPreferences(prefs), Preferences.class).getConfig().getDataSource());
+  }
+
+  private Preferences prefs(final String dataSource) throws Exception {
+    val prefs = objectMapper.readValue("{\"config\":{},\"filter\":{}}", Preferences.class);
+    prefs.getConfig().setDataSource(dataSource);
+    return prefs;
+  }
+
+  private static String jwt(final String payload) {
+    val encoder = Base64.getUrlEncoder().withoutPadding();
+    return encoder.encodeToString("{\"alg\":\"HS256\"}".getBytes(StandardCharsets.UTF_8)) + "."
+        + encoder.encodeToString(payload.getBytes(StandardCharsets.UTF_8)) + ".assinatura";
+  }
+
+}
@@ -0,0 +1,178 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.CommunicationService;
+import br.mil.eb.sermil.assinatura.client.service.OfflineJournal;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import br.mil.eb.sermil.assinatura.client.util.PdfFile;
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+
+/**
+ * Diario local: reaplicacao do {@code journal.log}, compactacao depois dos reenvios e recusas e entradas ilegiveis em
+ * {@code failed/}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class OfflineJournalTest {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  private Path dir;
+
+  private CommunicationService communicationService;
+
+  private OfflineJournal journal;
+
+  @Before
+  public void init() throws IOException {
+    dir = Files.createTempDirectory("journal");
+    communicationService = mock(CommunicationService.class);
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    if (journal != null)
+      ReflectionTestUtils.invokeMethod(journal, "destroy");
+    try (Stream<Path> walk = Files.walk(dir)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  @Test
+  public void replayKeepsOnlyOpenEntries() throws Exception {
+    offline();
+    journal = open(60000);
+    journal.append(certificado(1), "pdf1".getBytes(), "12345678901", new Preferences(), "id-1");
+    journal.append(certificado(2), "pdf2".getBytes(), "12345678901", new Preferences(), "id-2");
+    journal.append(certificado(3), "pdf3".getBytes(), "12345678901", new Preferences(), "id-3");
+    ReflectionTestUtils.invokeMethod(journal, "destroy");
+    Files.write(dir.resolve("journal.log"), "DONE id-1\nFAIL id-3\n".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.APPEND);
+
+    journal = open(60000);
+    assertEquals(1, journal.getPendingCount());
+    // o pendente reaplicado e reenviado com a chave de idempotencia original
+    verify(communicationService, timeout(5000)).saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class),
+        eq("12345678901"), any(Preferences.class), eq("id-2"));
+  }
+
+  @Test
+  public void uploadedEntriesCompactTheLog() throws Exception {
+    when(communicationService.saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class), anyString(),
+        any(Preferences.class), anyString())).thenReturn(new AssinaturaEntity());
+    journal = open(10);
+    journal.append(certificado(1), "pdf1".getBytes(), "12345678901", new Preferences(), "id-1");
+    journal.append(certificado(2), "pdf2".getBytes(), "12345678901", new Preferences(), "id-2");
+
+    awaitNoPending();
+    // a compactacao vem logo depois do ultimo reenvio, na mesma thread
+    for (int i = 0; i < 500 && Files.size(dir.resolve("journal.log")) > 0; i++)
+      Thread.sleep(10);
+    assertEquals(0, Files.size(dir.resolve("journal.log")));
+    assertFalse(Files.exists(dir.resolve("id-1.pdf")));
+    assertFalse(Files.exists(dir.resolve("id-2.json")));
+    assertEquals(Collections.emptyList(), journal.getFailed());
+
+    ReflectionTestUtils.invokeMethod(journal, "destroy");
+    journal = open(10);
+    assertEquals(0, journal.getPendingCount());
+  }
+
+  @Test
+  public void rejectedEntriesAreListed() throws Exception {
+    when(communicationService.saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class), anyString(),
+        any(Preferences.class), anyString())).thenReturn(new AssinaturaEntity().addErrorMsg("recusado"));
+    journal = open(10);
+    journal.append(certificado(1), "pdf1".getBytes(), "12345678901", new Preferences(), "id-1");
+
+    awaitNoPending();
+    assertEquals(Collections.singletonList("id-1"), journal.getFailed());
+    assertEquals(1, journal.getFailedCount());
+    assertTrue(Files.exists(dir.resolve("failed").resolve("id-1.pdf")));
+
+    // recusados continuam listados depois de reiniciar
+    ReflectionTestUtils.invokeMethod(journal, "destroy");
+    journal = open(10);
+    assertEquals(1, journal.getFailedCount());
+  }
+
+  @Test
+  public void unreadableEntriesDoNotBlockTheQueue() throws Exception {
+    journal = open(60000);
+    journal.append(certificado(1), "pdf1".getBytes(), "12345678901", new Preferences(), "id-1");
+    journal.append(certificado(2), "pdf2".getBytes(), "12345678901", new Preferences(), "id-2");
+    ReflectionTestUtils.invokeMethod(journal, "destroy");
+    Files.delete(dir.resolve("id-1.p7s"));
+
+    when(communicationService.saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class), anyString(),
+        any(Preferences.class), anyString())).thenReturn(new AssinaturaEntity());
+    journal = open(10);
+    awaitNoPending();
+    // a entrada sem p7s vai para failed/ em vez de ser reagendada; a seguinte e enviada
+    assertEquals(Collections.singletonList("id-1"), journal.getFailed());
+    verify(communicationService, timeout(5000)).saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class),
+        eq("12345678901"), any(Preferences.class), eq("id-2"));
+  }
+
+  private void offline() throws Exception {
+    val failure = new AssinaturaEntity().addErrorMsg("offline");
+    when(communicationService.saveSignedDTOCertificate(any(CidDocMilitarDTO.class), any(PdfFile.class), anyString(),
+        any(Preferences.class), anyString())).thenReturn(failure);
+    when(communicationService.isNetworkFailure(failure)).thenReturn(true);
+  }
+
+  private OfflineJournal open(final long initialBackoffMs) {
+    val journal = new OfflineJournal();
+    ReflectionTestUtils.setField(journal, "env", new MockEnvironment().withProperty("journal.dir", dir.toString())
+        .withProperty("journal.retry.initial.ms", String.valueOf(initialBackoffMs)));
+    ReflectionTestUtils.setField(journal, "objectMapper", objectMapper);
+    ReflectionTestUtils.setField(journal, "communicationService", communicationService);
+    ReflectionTestUtils.setField(journal, "metrics", mock(Metrics.class));
+    ReflectionTestUtils.invokeMethod(journal, "init");
+    return journal;
+  }
+
+  private CidDocMilitarDTO certificado(final int ra) throws IOException {
+    val certificado = objectMapper.readValue("{\"ra\":\"" + ra + "\",\"tipo\":1}", CidDocMilitarDTO.class);
+    certificado.setAssinatura(("p7s" + ra).getBytes());
+    return certificado;
+  }
+
+  private void awaitNoPending() throws InterruptedException {
+    for (int i = 0; i < 500 && journal.getPendingCount() > 0; i++)
+      Thread.sleep(10);
+    assertEquals(0, journal.getPendingCount());
+  }
+
+}
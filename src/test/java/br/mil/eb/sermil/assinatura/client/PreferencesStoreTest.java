@@ -0,0 +1,159 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import br.mil.eb.sermil.assinatura.client.service.PreferencesStore;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+
+/**
+ * Preferencias: gravacoes agrupadas, gravacao pendente concluida no encerramento e monitor que so recarrega alteracoes externas.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class PreferencesStoreTest {
+
+  private final ObjectMapper objectMapper = spy(new ObjectMapper());
+
+  private Path dir;
+
+  private Path file;
+
+  private PreferencesStore store;
+
+  @Before
+  public void init() throws IOException {
+    dir = Files.createTempDirectory("preferences");
+    file = dir.resolve("preferences.json");
+    store = new PreferencesStore();
+    ReflectionTestUtils.setField(store, "env", new MockEnvironment().withProperty("application.preferences.file", file.toString()));
+    ReflectionTestUtils.setField(store, "objectMapper", objectMapper);
+    ReflectionTestUtils.invokeMethod(store, "init");
+  }
+
+  @After
+  public void cleanup() throws IOException {
+    ReflectionTestUtils.invokeMethod(store, "destroy");
+    try (Stream<Path> walk = Files.walk(dir)) {
+      walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    }
+  }
+
+  @Test
+  public void consecutiveSavesAreCoalesced() throws Exception {
+    val release = blockWriter();
+    for (int i = 0; i < 50; i++)
+      store.save(prefs("ds" + i));
+    release.countDown();
+
+    awaitFile("ds49");
+    verify(objectMapper, times(1)).writeValueAsBytes(any());
+    assertEquals("ds49", store.load(prefs("defaults")).getConfig().getDataSource());
+  }
+
+  @Test
+  public void pendingSaveIsWrittenOnShutdown() throws Exception {
+    val release = blockWriter();
+    store.save(prefs("final"));
+    val releaser = new Thread(() -> {
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      release.countDown();
+    });
+    releaser.start();
+    ReflectionTestUtils.invokeMethod(store, "destroy");
+    // destroy so retorna depois da gravacao
+    assertEquals("final", fileDataSource());
+  }
+
+  @Test
+  public void loadReturnsTheInstanceInMemory() throws Exception {
+    store.save(prefs("gravado"));
+    assertSame(store.load(prefs("defaults")), store.load(prefs("defaults")));
+  }
+
+  @Test
+  public void ownWritesAreNotReloaded() throws Exception {
+    store.save(prefs("gravado"));
+    awaitFile("gravado");
+
+    // nova alteracao ainda na fila: o arquivo tem a gravacao anterior, que continua sendo do proprio processo
+    val release = blockWriter();
+    store.save(prefs("memoria"));
+    ReflectionTestUtils.invokeMethod(store, "reloadIfExternal");
+    assertEquals("memoria", store.load(prefs("defaults")).getConfig().getDataSource());
+    release.countDown();
+    awaitFile("memoria");
+  }
+
+  @Test
+  public void externalChangesAreReloaded() throws Exception {
+    store.save(prefs("gravado"));
+    awaitFile("gravado");
+
+    Files.write(file, new ObjectMapper().writeValueAsBytes(prefs("externo")));
+    for (int i = 0; i < 1000 && !"externo".equals(store.load(prefs("defaults")).getConfig().getDataSource()); i++)
+      Thread.sleep(10);
+    assertEquals("externo", store.load(prefs("defaults")).getConfig().getDataSource());
+  }
+
+  private CountDownLatch blockWriter() throws InterruptedException {
+    val started = new CountDownLatch(1);
+    val release = new CountDownLatch(1);
+    ((ExecutorService) ReflectionTestUtils.getField(store, "writer")).execute(() -> {
+      started.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    started.await();
+    return release;
+  }
+
+  private void awaitFile(final String dataSource) throws Exception {
+    for (int i = 0; i < 500 && !dataSource.equals(fileDataSource()); i++)
+      Thread.sleep(10);
+    assertEquals(dataSource, fileDataSource());
+  }
+
+  private String fileDataSource() throws IOException {
+    if (!Files.exists(file))
+      return null;
+    return new ObjectMapper().readValue(Files.readAllBytes(file), Preferences.class).getConfig().getDataSource();
+  }
+
+  private Preferences prefs(final String dataSource) throws IOException {
+    val prefs = objectMapper.readValue("{\"config\":{},\"filter\":{}}", Preferences.class);
+    prefs.getConfig().setDataSource(dataSource);
+    return prefs;
+  }
+
+}
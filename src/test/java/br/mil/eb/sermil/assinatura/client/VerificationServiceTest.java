@@ -0,0 +1,133 @@
+package br.mil.eb.sermil.assinatura.client;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import br.mil.eb.sermil.assinatura.client.service.VerificationService;
+import br.mil.eb.sermil.assinatura.client.util.Metrics;
+import lombok.val;
+
+/**
+ * Cadeia de certificados da verificacao local: so e valida quando termina em uma raiz confiavel e cada certificado esta na
+ * validade na data da assinatura.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+public class VerificationServiceTest {
+
+  private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+  private static final AtomicLong SERIAL = new AtomicLong(1);
+
+  private final long now = System.currentTimeMillis();
+
+  private MockEnvironment env;
+
+  private Path trustStore;
+
+  private KeyPair rootKeys;
+
+  private X509Certificate root;
+
+  private KeyPair signerKeys;
+
+  @Before
+  public void init() throws Exception {
+    env = new MockEnvironment().withProperty("verification.trust.icp-brasil", "false");
+    rootKeys = newKeyPair();
+    root = certificate("CN=AC Raiz de Teste", rootKeys, null, rootKeys.getPrivate(), new Date(now - 10 * DAY), new Date(now + 10 * DAY));
+    signerKeys = newKeyPair();
+    trustStore = Files.createTempFile("truststore", ".jks");
+  }
+
+  @After
+  public void cleanup() throws Exception {
+    Files.deleteIfExists(trustStore);
+  }
+
+  @Test
+  public void selfSignedChainIsInvalid() throws Exception {
+    val signer = certificate("CN=Signatario", signerKeys, root, rootKeys.getPrivate(), new Date(now - DAY), new Date(now + DAY));
+    val errors = newService().validateChain(Arrays.asList(signer, root), new Date(now));
+    assertFalse(errors.isEmpty());
+    assertTrue(errors.stream().anyMatch(e -> e.contains("raiz confiavel")));
+  }
+
+  @Test
+  public void chainEndingInTrustedRootIsValid() throws Exception {
+    trust(root);
+    val signer = certificate("CN=Signatario", signerKeys, root, rootKeys.getPrivate(), new Date(now - DAY), new Date(now + DAY));
+    assertTrue(newService().validateChain(Arrays.asList(signer, root), new Date(now)).isEmpty());
+  }
+
+  @Test
+  public void validityIsCheckedAtSignDate() throws Exception {
+    trust(root);
+    val signer = certificate("CN=Signatario", signerKeys, root, rootKeys.getPrivate(), new Date(now - 3 * DAY), new Date(now - DAY));
+    val service = newService();
+    assertTrue(service.validateChain(Arrays.asList(signer, root), new Date(now - 2 * DAY)).isEmpty());
+    assertFalse(service.validateChain(Arrays.asList(signer, root), new Date(now)).isEmpty());
+  }
+
+  private VerificationService newService() {
+    val service = new VerificationService();
+    ReflectionTestUtils.setField(service, "env", env);
+    ReflectionTestUtils.setField(service, "metrics", new Metrics());
+    return service;
+  }
+
+  private void trust(X509Certificate certificate) throws Exception {
+    val keyStore = KeyStore.getInstance("JKS");
+    keyStore.load(null, null);
+    keyStore.setCertificateEntry("raiz", certificate);
+    try (OutputStream out = Files.newOutputStream(trustStore)) {
+      keyStore.store(out, "changeit".toCharArray());
+    }
+    env.setProperty("verification.truststore.file", trustStore.toString());
+    env.setProperty("verification.truststore.password", "changeit");
+  }
+
+  private static KeyPair newKeyPair() throws Exception {
+    val generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    return generator.generateKeyPair();
+  }
+
+  private static X509Certificate certificate(String subject, KeyPair keys, X509Certificate issuer, PrivateKey issuerKey,
+      Date notBefore, Date notAfter) throws Exception {
+    val issuerName = issuer == null ? new X500Name(subject) : X500Name.getInstance(issuer.getSubjectX500Principal().getEncoded());
+    val builder = new JcaX509v3CertificateBuilder(issuerName, BigInteger.valueOf(SERIAL.getAndIncrement()), notBefore, notAfter,
+        new X500Name(subject), keys.getPublic());
+    builder.addExtension(Extension.basicConstraints, true, new BasicConstraints(issuer == null));
+    return new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey)));
+  }
+
+}
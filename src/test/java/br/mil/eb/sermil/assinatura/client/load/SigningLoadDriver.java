@@ -0,0 +1,102 @@
+package br.mil.eb.sermil.assinatura.client.load;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import br.mil.eb.sermil.assinatura.core.dto.CidDocMilitarDTO;
+import br.mil.eb.sermil.assinatura.core.type.AssinaturaEntity;
+import br.mil.eb.sermil.assinatura.core.type.Preferences;
+import lombok.val;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Gerador de carga para o fluxo de assinatura do cliente ({@code /token/certificate/assinar}), normalmente com o cliente no
+ * perfil {@code mock-server}. Cada worker assina, em ciclo, os certificados devolvidos por {@code /user/certificates}; ao final
+ * sao reportadas a vazao e as latencias p50/p95/p99.
+ * <p>
+ * Argumentos (todos opcionais): {@code alias [threads] [segundos] [url do cliente] [cpf]}.
+ *
+ * @author Anselmo S Ribeiro <anselmo.sr@gmail.com>
+ * @version 1.3-GO
+ * @since 1.3
+ */
+@Slf4j
+public class SigningLoadDriver {
+
+  public static void main(String[] args) throws Exception {
+    val alias = args.length > 0 ? args[0] : System.getProperty("load.alias");
+    val threads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    val seconds = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+    val baseUrl = args.length > 3 ? args[3] : "http://localhost:8765";
+    val cpf = args.length > 4 ? args[4] : "55555555555";
+
+    val requestFactory = new SimpleClientHttpRequestFactory();
+    requestFactory.setConnectTimeout(5000);
+    requestFactory.setReadTimeout(600000);
+    val client = new RestTemplate(requestFactory);
+
+    val prefs = new Preferences();
+    val config = new Preferences.Config();
+    config.setDataSource("local");
+    prefs.setConfig(config);
+
+    val certificados = client.postForObject(baseUrl + "/user/certificates?cpf=" + cpf, prefs, AssinaturaEntity.class)
+        .getCertificados();
+    if (certificados == null || certificados.isEmpty())
+      throw new IllegalStateException("Nenhum certificado para assinar em " + baseUrl);
+    log.info("Carga: {} threads por {}s, {} certificados, alias {}.", threads, seconds, certificados.size(), alias);
+
+    val latencies = Collections.synchronizedList(new ArrayList<Long>());
+    val errors = new AtomicInteger();
+    val next = new AtomicInteger();
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    ExecutorService workers = Executors.newFixedThreadPool(threads);
+    for (int i = 0; i < threads; i++) {
+      workers.execute(() -> {
+        while (System.nanoTime() < deadline) {
+          CidDocMilitarDTO certificado = certificados.get(Math.floorMod(next.getAndIncrement(), certificados.size()));
+          val start = System.nanoTime();
+          try {
+            val ae = client.postForObject(baseUrl + "/token/certificate/assinar?alias=" + alias,
+                AssinaturaEntity.builder().certificado(certificado).preferences(prefs).build(), AssinaturaEntity.class);
+            if (ae.getErrorMsgs() != null && !ae.getErrorMsgs().isEmpty())
+              errors.incrementAndGet();
+            else
+              latencies.add(System.nanoTime() - start);
+          } catch (Exception e) {
+            errors.incrementAndGet();
+            log.error("Falha na assinatura: {}", e.getMessage());
+          }
+        }
+      });
+    }
+    workers.shutdown();
+    workers.awaitTermination(seconds + 600L, TimeUnit.SECONDS);
+    report(latencies, errors.get(), seconds);
+  }
+
+  private static void report(List<Long> latencies, int errors, int seconds) {
+    List<Long> sorted = new ArrayList<>(latencies);
+    Collections.sort(sorted);
+    log.info("Assinaturas: {} ok, {} com erro, {} por segundo.", sorted.size(), errors,
+        String.format("%.2f", sorted.size() / (double) seconds));
+    if (sorted.isEmpty())
+      return;
+    log.info("Latencia (ms): p50 {}, p95 {}, p99 {}, max {}.", percentile(sorted, 50), percentile(sorted, 95),
+        percentile(sorted, 99), TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() - 1)));
+  }
+
+  private static long percentile(List<Long> sorted, int p) {
+    val index = (int) Math.ceil(p / 100.0 * sorted.size()) - 1;
+    return TimeUnit.NANOSECONDS.toMillis(sorted.get(Math.max(index, 0)));
+  }
+
+}